@@ -0,0 +1,138 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the encoded CDS Hooks discovery document and its strong ETag.
+ * <p>
+ * The document is keyed by a fingerprint of the services the registry currently holds (their ids, hooks, titles,
+ * descriptions and prefetch templates), so it is rebuilt as soon as the registry has picked up a PlanDefinition
+ * change, whichever node the change was made on. PlanDefinition changes seen by the resource-change listener
+ * discard the document as well, for changes the fingerprint does not cover.
+ * <p>
+ * Every invalidation bumps a generation number, and a rendered document is only kept if no invalidation happened
+ * while it was being rendered.
+ */
+public class CdsDiscoveryCache implements IResourceChangeListener {
+	private static final Logger logger = LoggerFactory.getLogger(CdsDiscoveryCache.class);
+
+	private final AtomicLong generation = new AtomicLong();
+	private volatile Entry entry;
+
+	/**
+	 * Returns the document for the given services, rendering it unless the cached one was rendered from the same
+	 * set of services.
+	 */
+	public Document get(CdsServicesJson theServices, Renderer theRenderer) throws IOException {
+		String fingerprint = fingerprint(theServices);
+		Entry current = entry;
+		if (current == null || !current.fingerprint().equals(fingerprint)) {
+			synchronized (this) {
+				current = entry;
+				if (current == null || !current.fingerprint().equals(fingerprint)) {
+					long renderedGeneration = generation.get();
+					byte[] body = theRenderer.render();
+					current = new Entry(fingerprint, new Document(body, etag(body)));
+					if (generation.get() == renderedGeneration) {
+						entry = current;
+					}
+				}
+			}
+		}
+		return current.document();
+	}
+
+	public void invalidate() {
+		generation.incrementAndGet();
+		entry = null;
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		invalidate();
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		logger.debug("PlanDefinitions changed, discarding cached discovery document");
+		invalidate();
+	}
+
+	static String fingerprint(CdsServicesJson theServices) {
+		StringBuilder fingerprint = new StringBuilder();
+		if (theServices != null && theServices.getServices() != null) {
+			for (CdsServiceJson service : theServices.getServices()) {
+				Map<String, String> prefetch =
+						service.getPrefetch() != null ? new TreeMap<>(service.getPrefetch()) : Map.of();
+				fingerprint
+						.append(service.getId())
+						.append('\0')
+						.append(service.getHook())
+						.append('\0')
+						.append(service.getTitle())
+						.append('\0')
+						.append(service.getDescription())
+						.append('\0')
+						.append(prefetch)
+						.append('\n');
+			}
+		}
+		return sha256(fingerprint.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String etag(byte[] theBody) {
+		return '"' + sha256(theBody) + '"';
+	}
+
+	private static String sha256(byte[] theValue) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(theValue));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	private record Entry(String fingerprint, Document document) {}
+
+	public record Document(byte[] body, String etag) {
+		/**
+		 * Returns true if the given If-None-Match header value matches this document.
+		 */
+		public boolean matches(String theIfNoneMatch) {
+			if (theIfNoneMatch == null) {
+				return false;
+			}
+			for (String candidate : theIfNoneMatch.split(",")) {
+				String tag = candidate.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals("*") || tag.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	@FunctionalInterface
+	public interface Renderer {
+		byte[] render() throws IOException;
+	}
+}
@@ -0,0 +1,91 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.cr.repo.HapiFhirRepository;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.fhir.api.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Derives the discovery output of every PlanDefinition in parallel once the application has started. Readiness is
+ * only reported after this listener returns, so the CDS endpoint does not take traffic with a cold discovery.
+ */
+public class CdsDiscoveryPrecomputer {
+	private static final Logger logger = LoggerFactory.getLogger(CdsDiscoveryPrecomputer.class);
+
+	private final CdsDiscoveryPrefetchStore store;
+	private final DaoRegistry daoRegistry;
+	private final RestfulServer restfulServer;
+	private final CdsHooksDiscoveryProperties properties;
+
+	public CdsDiscoveryPrecomputer(
+			CdsDiscoveryPrefetchStore theStore,
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			CdsHooksDiscoveryProperties theProperties) {
+		store = theStore;
+		daoRegistry = theDaoRegistry;
+		restfulServer = theRestfulServer;
+		properties = theProperties;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void precompute() {
+		if (!properties.isPrecompute() || !daoRegistry.isResourceTypeSupported("PlanDefinition")) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		List<IIdType> planDefinitionIds = daoRegistry.getResourceDao("PlanDefinition")
+				.search(SearchParameterMap.newSynchronous(), new SystemRequestDetails())
+				.getAllResources()
+				.stream()
+				.map(IBaseResource::getIdElement)
+				.map(IIdType::toUnqualifiedVersionless)
+				.toList();
+
+		AtomicInteger failures = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.max(1, properties.getThreads()), new CustomizableThreadFactory("cds-discovery-"));
+		store.deferPersist();
+		try {
+			CompletableFuture.allOf(planDefinitionIds.stream()
+							.map(id -> CompletableFuture.runAsync(() -> precompute(id, failures), executor))
+							.toArray(CompletableFuture[]::new))
+					.join();
+		} finally {
+			executor.shutdown();
+			store.persist();
+		}
+		logger.info(
+				"Precomputed CDS discovery for {} PlanDefinitions in {} ms ({} failed)",
+				planDefinitionIds.size(),
+				System.currentTimeMillis() - start,
+				failures.get());
+	}
+
+	private void precompute(IIdType thePlanDefinitionId, AtomicInteger theFailures) {
+		try {
+			// Request details carry per-request state, so every task gets its own
+			Repository repository = new HapiFhirRepository(daoRegistry, new SystemRequestDetails(), restfulServer);
+			new UpdatedCrDiscoveryServiceR4(thePlanDefinitionId, repository).resolveService();
+		} catch (RuntimeException e) {
+			// Left for the service registration to report
+			theFailures.incrementAndGet();
+			logger.warn("Unable to precompute CDS discovery for {}: {}", thePlanDefinitionId, e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.cache.IResourceChangeEvent;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListener;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Prefetch templates derived for each PlanDefinition during discovery, keyed by a fingerprint of the
+ * PlanDefinition and the Library versions it depends on, so a template is derived once per version instead of on
+ * every discovery refresh. When a cache file is configured the templates survive restarts, and only PlanDefinitions
+ * whose inputs changed are derived again.
+ * <p>
+ * Concurrent requests for the same key share one derivation, so the startup precomputation and the CDS Hooks
+ * service registration never derive the same template twice.
+ * <p>
+ * The fingerprints themselves are kept per PlanDefinition version until a Library changes, as computing one searches
+ * every Library the PlanDefinition depends on.
+ * <p>
+ * Discovery services are instantiated reflectively by HAPI, so they reach the store through
+ * {@link #forContext(FhirContext)}, keyed by the FhirContext of the application context that created it.
+ */
+public class CdsDiscoveryPrefetchStore implements IResourceChangeListener {
+	private static final Logger logger = LoggerFactory.getLogger(CdsDiscoveryPrefetchStore.class);
+	private static final TypeReference<Map<String, List<String>>> ENTRIES_TYPE = new TypeReference<>() {};
+
+	private static final Map<FhirContext, CdsDiscoveryPrefetchStore> stores =
+			Collections.synchronizedMap(new WeakHashMap<>());
+
+	private final FhirContext fhirContext;
+	private final Path cacheFile;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final Map<String, CompletableFuture<List<String>>> entries = new ConcurrentHashMap<>();
+	// Keys requested since startup; only these are written back, which prunes superseded versions
+	private final Set<String> liveKeys = ConcurrentHashMap.newKeySet();
+	private volatile boolean deferPersist;
+	// Fingerprints by versionless PlanDefinition id, dropped whenever a Library changes
+	private final Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<>();
+	private final AtomicLong libraryGeneration = new AtomicLong();
+
+	public CdsDiscoveryPrefetchStore(FhirContext theFhirContext, String theCacheFile) {
+		fhirContext = theFhirContext;
+		cacheFile = theCacheFile == null || theCacheFile.isBlank() ? null : Path.of(theCacheFile);
+		load();
+	}
+
+	/**
+	 * Returns the store of the application context the given FhirContext belongs to, or null if it has none.
+	 */
+	public static CdsDiscoveryPrefetchStore forContext(FhirContext theFhirContext) {
+		return stores.get(theFhirContext);
+	}
+
+	public void register() {
+		stores.put(fhirContext, this);
+	}
+
+	public void close() {
+		stores.remove(fhirContext, this);
+	}
+
+	/**
+	 * Returns the fingerprint of the given PlanDefinition version, computing it unless it was computed since the
+	 * last Library change.
+	 */
+	public String fingerprint(String thePlanDefinitionId, String theVersion, Supplier<String> theComputation) {
+		Fingerprint cached = fingerprints.get(thePlanDefinitionId);
+		if (cached != null && Objects.equals(cached.version(), theVersion)) {
+			return cached.value();
+		}
+		long generation = libraryGeneration.get();
+		String value = theComputation.get();
+		if (libraryGeneration.get() == generation) {
+			fingerprints.put(thePlanDefinitionId, new Fingerprint(theVersion, value));
+		}
+		return value;
+	}
+
+	@Override
+	public void handleInit(Collection<IIdType> theResourceIds) {
+		invalidateFingerprints();
+	}
+
+	@Override
+	public void handleChange(IResourceChangeEvent theResourceChangeEvent) {
+		logger.debug("Libraries changed, discarding cached discovery fingerprints");
+		invalidateFingerprints();
+	}
+
+	private void invalidateFingerprints() {
+		libraryGeneration.incrementAndGet();
+		fingerprints.clear();
+	}
+
+	/**
+	 * Returns the templates stored under the key, deriving and storing them if this is the first request for it.
+	 */
+	public List<String> get(String theKey, Supplier<List<String>> theDerivation) {
+		liveKeys.add(theKey);
+		CompletableFuture<List<String>> derivation = new CompletableFuture<>();
+		CompletableFuture<List<String>> existing = entries.putIfAbsent(theKey, derivation);
+		if (existing != null) {
+			try {
+				return existing.join();
+			} catch (CompletionException e) {
+				throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+			}
+		}
+
+		List<String> templates;
+		try {
+			templates = List.copyOf(theDerivation.get());
+		} catch (RuntimeException e) {
+			// Let the next request try again
+			entries.remove(theKey, derivation);
+			derivation.completeExceptionally(e);
+			throw e;
+		}
+		derivation.complete(templates);
+		if (!deferPersist) {
+			persist();
+		}
+		return templates;
+	}
+
+	/**
+	 * Suspends writing the cache file until {@link #persist()} is called, for bulk precomputation.
+	 */
+	public void deferPersist() {
+		deferPersist = true;
+	}
+
+	public synchronized void persist() {
+		deferPersist = false;
+		if (cacheFile == null) {
+			return;
+		}
+		Map<String, List<String>> snapshot = new TreeMap<>();
+		entries.forEach((key, derivation) -> {
+			if (liveKeys.contains(key) && derivation.isDone() && !derivation.isCompletedExceptionally()) {
+				snapshot.put(key, derivation.join());
+			}
+		});
+		try {
+			Path parent = cacheFile.toAbsolutePath().getParent();
+			Files.createDirectories(parent);
+			Path temp = Files.createTempFile(parent, cacheFile.getFileName().toString(), ".tmp");
+			objectMapper.writeValue(temp.toFile(), snapshot);
+			Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.warn("Unable to write CDS discovery cache {}: {}", cacheFile, e.getMessage());
+		}
+	}
+
+	private void load() {
+		if (cacheFile == null || !Files.isRegularFile(cacheFile)) {
+			return;
+		}
+		try {
+			Map<String, List<String>> stored = objectMapper.readValue(cacheFile.toFile(), ENTRIES_TYPE);
+			stored.forEach((key, templates) -> entries.put(key, CompletableFuture.completedFuture(List.copyOf(templates))));
+			logger.info("Loaded {} CDS discovery entries from {}", stored.size(), cacheFile);
+		} catch (IOException e) {
+			// A corrupt or outdated cache only costs the derivations
+			logger.warn("Ignoring unreadable CDS discovery cache {}: {}", cacheFile, e.getMessage());
+		}
+	}
+
+	private record Fingerprint(String version, String value) {}
+}
@@ -0,0 +1,74 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dedicated, bounded pool for asynchronous CDS Hooks evaluation, so that slow hooks cannot exhaust the servlet
+ * container's worker threads. Work beyond the queue depth is rejected rather than queued.
+ */
+public class CdsHooksAsyncExecutor {
+
+	private final ThreadPoolExecutor threadPool;
+	private final ExecutorService executor;
+	private final Timer waitTimer;
+	private final Counter rejectedCounter;
+
+	public CdsHooksAsyncExecutor(CdsHooksAsyncProperties theProperties, MeterRegistry theMeterRegistry) {
+		threadPool = new ThreadPoolExecutor(
+				theProperties.getThreads(),
+				theProperties.getThreads(),
+				60,
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(theProperties.getQueueDepth()),
+				new CustomizableThreadFactory("cds-hooks-"),
+				new ThreadPoolExecutor.AbortPolicy());
+		executor = new DelegatingSecurityContextExecutorService(threadPool);
+
+		Gauge.builder("cds.hooks.async.queue.depth", threadPool, p -> p.getQueue().size())
+				.description("CDS Hooks requests waiting for an evaluation thread")
+				.register(theMeterRegistry);
+		Gauge.builder("cds.hooks.async.active", threadPool, ThreadPoolExecutor::getActiveCount)
+				.description("CDS Hooks requests being evaluated")
+				.register(theMeterRegistry);
+		waitTimer = Timer.builder("cds.hooks.async.wait")
+				.description("Time CDS Hooks requests spend queued before evaluation starts")
+				.register(theMeterRegistry);
+		rejectedCounter = Counter.builder("cds.hooks.async.rejected")
+				.description("CDS Hooks requests rejected because the evaluation queue was full")
+				.register(theMeterRegistry);
+	}
+
+	/**
+	 * Queues the task, recording how long it waits for a thread.
+	 *
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public Future<?> submit(Runnable theTask) {
+		long queuedAt = System.nanoTime();
+		try {
+			return executor.submit(() -> {
+				waitTimer.record(System.nanoTime() - queuedAt, TimeUnit.NANOSECONDS);
+				theTask.run();
+			});
+		} catch (RejectedExecutionException e) {
+			rejectedCounter.increment();
+			throw e;
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
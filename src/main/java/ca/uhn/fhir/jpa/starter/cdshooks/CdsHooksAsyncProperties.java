@@ -0,0 +1,62 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+public class CdsHooksAsyncProperties {
+
+	private boolean enabled = false;
+	private int threads = 4;
+	private int queueDepth = 50;
+	private long timeoutMs = 60000;
+	private int rejectStatus = 503;
+	private int retryAfterSeconds = 5;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	public void setQueueDepth(int queueDepth) {
+		this.queueDepth = queueDepth;
+	}
+
+	public long getTimeoutMs() {
+		return timeoutMs;
+	}
+
+	public void setTimeoutMs(long timeoutMs) {
+		this.timeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Status returned when the evaluation queue is full, either 503 or 429.
+	 */
+	public int getRejectStatus() {
+		return rejectStatus;
+	}
+
+	public void setRejectStatus(int rejectStatus) {
+		this.rejectStatus = rejectStatus;
+	}
+
+	public int getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	public void setRetryAfterSeconds(int retryAfterSeconds) {
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+}
@@ -0,0 +1,32 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+public class CdsHooksDiscoveryProperties {
+
+	private boolean precompute = true;
+	private int threads = 4;
+	private String cacheFile;
+
+	public boolean isPrecompute() {
+		return precompute;
+	}
+
+	public void setPrecompute(boolean precompute) {
+		this.precompute = precompute;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public String getCacheFile() {
+		return cacheFile;
+	}
+
+	public void setCacheFile(String cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+}
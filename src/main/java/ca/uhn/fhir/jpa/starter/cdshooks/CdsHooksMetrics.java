@@ -0,0 +1,41 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Names and tags of the timers that break a CDS Hooks call into its phases, so a slow hook can be traced to
+ * request parsing, prefetch, {@code $apply} / CQL evaluation or response encoding.
+ */
+public final class CdsHooksMetrics {
+	public static final String PHASE_TIMER = "cds.hooks.phase";
+	public static final String PREFETCH_ITEM_TIMER = "cds.hooks.prefetch.item";
+
+	public static final String PHASE_PARSE = "parse";
+	public static final String PHASE_PREFETCH = "prefetch";
+	public static final String PHASE_APPLY = "apply";
+	public static final String PHASE_ENCODE = "encode";
+	public static final String PHASE_TOTAL = "total";
+
+	public static final String UNKNOWN_SERVICE = "unknown";
+
+	private CdsHooksMetrics() {}
+
+	/**
+	 * Records the time elapsed since {@code theStartNanos} against the given service and phase.
+	 */
+	public static void recordPhase(MeterRegistry theMeterRegistry, String theServiceId, String thePhase, long theStartNanos) {
+		Timer.builder(PHASE_TIMER)
+				.description("Time spent in each phase of a CDS Hooks call")
+				.tag("service", serviceTag(theServiceId))
+				.tag("phase", thePhase)
+				.register(theMeterRegistry)
+				.record(System.nanoTime() - theStartNanos, TimeUnit.NANOSECONDS);
+	}
+
+	public static String serviceTag(String theServiceId) {
+		return theServiceId == null || theServiceId.isBlank() ? UNKNOWN_SERVICE : theServiceId;
+	}
+}
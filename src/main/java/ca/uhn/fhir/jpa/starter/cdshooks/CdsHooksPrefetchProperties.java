@@ -0,0 +1,102 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CdsHooksPrefetchProperties {
+
+	private int threads = 12;
+	private long queryTimeoutMs = 5000;
+	private long timeoutMs = 8000;
+	private List<String> localServerAddresses = new ArrayList<>();
+	private String labsValueSet = "classpath:cdshooks/uds-labs-valueset.json";
+	private int maxCodeParameterLength = 1500;
+	private int maxCachedClients = 50;
+	private int maxConnectionsPerServer = 20;
+	private List<String> meteredServers = new ArrayList<>();
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public long getQueryTimeoutMs() {
+		return queryTimeoutMs;
+	}
+
+	public void setQueryTimeoutMs(long queryTimeoutMs) {
+		this.queryTimeoutMs = queryTimeoutMs;
+	}
+
+	public long getTimeoutMs() {
+		return timeoutMs;
+	}
+
+	public void setTimeoutMs(long timeoutMs) {
+		this.timeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Base urls, in addition to hapi.fhir.server_address, under which CDS clients may address this server.
+	 * Prefetch for these is resolved in-process instead of over HTTP, provided the hook carries an access token that
+	 * this server accepts; its grants are enforced on the in-process results.
+	 */
+	public List<String> getLocalServerAddresses() {
+		return localServerAddresses;
+	}
+
+	public void setLocalServerAddresses(List<String> localServerAddresses) {
+		this.localServerAddresses = localServerAddresses;
+	}
+
+	/**
+	 * Location of the pre-expanded ValueSet of lab codes. Prefetch templates that search with {@code code:in} set to
+	 * this ValueSet's url are resolved against these codes instead of the server's terminology.
+	 */
+	public String getLabsValueSet() {
+		return labsValueSet;
+	}
+
+	public void setLabsValueSet(String labsValueSet) {
+		this.labsValueSet = labsValueSet;
+	}
+
+	public int getMaxCodeParameterLength() {
+		return maxCodeParameterLength;
+	}
+
+	public void setMaxCodeParameterLength(int maxCodeParameterLength) {
+		this.maxCodeParameterLength = maxCodeParameterLength;
+	}
+
+	public int getMaxCachedClients() {
+		return maxCachedClients;
+	}
+
+	public void setMaxCachedClients(int maxCachedClients) {
+		this.maxCachedClients = maxCachedClients;
+	}
+
+	public int getMaxConnectionsPerServer() {
+		return maxConnectionsPerServer;
+	}
+
+	public void setMaxConnectionsPerServer(int maxConnectionsPerServer) {
+		this.maxConnectionsPerServer = maxConnectionsPerServer;
+	}
+
+	/**
+	 * FHIR server base urls whose prefetch connection pools are metered on their own. Every other server is counted
+	 * under {@code server=other}, which keeps the number of meters bounded whatever fhirServer CDS clients send.
+	 */
+	public List<String> getMeteredServers() {
+		return meteredServers;
+	}
+
+	public void setMeteredServers(List<String> meteredServers) {
+		this.meteredServers = meteredServers;
+	}
+}
@@ -24,4 +24,64 @@ public class CdsHooksProperties {
 	public void setClientIdHeaderName(String clientIdHeaderName) {
 		this.clientIdHeaderName = clientIdHeaderName;
 	}
+
+	private CdsHooksPrefetchProperties prefetch = new CdsHooksPrefetchProperties();
+
+	public CdsHooksPrefetchProperties getPrefetch() {
+		return prefetch;
+	}
+
+	public void setPrefetch(CdsHooksPrefetchProperties prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	private boolean prettyPrint;
+
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+
+	public void setPrettyPrint(boolean prettyPrint) {
+		this.prettyPrint = prettyPrint;
+	}
+
+	private boolean logBodies;
+
+	public boolean isLogBodies() {
+		return logBodies;
+	}
+
+	public void setLogBodies(boolean logBodies) {
+		this.logBodies = logBodies;
+	}
+
+	private CdsHooksAsyncProperties async = new CdsHooksAsyncProperties();
+
+	public CdsHooksAsyncProperties getAsync() {
+		return async;
+	}
+
+	public void setAsync(CdsHooksAsyncProperties async) {
+		this.async = async;
+	}
+
+	private CdsHooksResponseCacheProperties responseCache = new CdsHooksResponseCacheProperties();
+
+	public CdsHooksResponseCacheProperties getResponseCache() {
+		return responseCache;
+	}
+
+	public void setResponseCache(CdsHooksResponseCacheProperties responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	private CdsHooksDiscoveryProperties discovery = new CdsHooksDiscoveryProperties();
+
+	public CdsHooksDiscoveryProperties getDiscovery() {
+		return discovery;
+	}
+
+	public void setDiscovery(CdsHooksDiscoveryProperties discovery) {
+		this.discovery = discovery;
+	}
 }
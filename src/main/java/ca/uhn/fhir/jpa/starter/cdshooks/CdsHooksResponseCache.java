@@ -0,0 +1,221 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceRequestJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived memo of CDS Hooks responses, for EHRs that fire the same hook for the same patient several times in
+ * a row (e.g. on every chart tab switch).
+ * <p>
+ * Responses are keyed by service id and a hash of the request's canonical context, prefetch, FHIR server and
+ * authorization; the hook instance id is deliberately left out as it is unique per invocation. Each patient carries
+ * a generation number that is part of the key and is bumped whenever a resource in the patient's compartment is
+ * stored, so responses computed from older data are never served again. Changes to the knowledge artifacts drop
+ * everything.
+ */
+@Interceptor
+public class CdsHooksResponseCache {
+	private static final Logger logger = LoggerFactory.getLogger(CdsHooksResponseCache.class);
+
+	private static final List<String> KEY_FIELDS = List.of("hook", "fhirServer", "fhirAuthorization", "context", "prefetch");
+	private static final Set<String> KNOWLEDGE_RESOURCE_TYPES = Set.of("PlanDefinition", "Library", "ValueSet", "ActivityDefinition");
+	private static final String PATIENT = "Patient";
+
+	private final FhirContext fhirContext;
+	private final ObjectMapper objectMapper;
+	private final Cache<ResponseKey, CdsServiceResponseJson> responses;
+	// Must outlive every response computed before the bump, otherwise a dropped generation would fall back to 0
+	private final Cache<String, Long> patientGenerations;
+	private final AtomicLong generationSequence = new AtomicLong();
+
+	public CdsHooksResponseCache(
+			FhirContext theFhirContext,
+			ObjectMapper theObjectMapper,
+			CdsHooksResponseCacheProperties theProperties,
+			MeterRegistry theMeterRegistry) {
+		fhirContext = theFhirContext;
+		objectMapper = theObjectMapper;
+		Duration ttl = Duration.ofSeconds(theProperties.getTtlSeconds());
+		responses = Caffeine.newBuilder()
+				.maximumSize(theProperties.getMaxSize())
+				.expireAfterWrite(ttl)
+				.recordStats()
+				.build();
+		patientGenerations =
+				Caffeine.newBuilder().expireAfterWrite(ttl.multipliedBy(2)).build();
+		CaffeineCacheMetrics.monitor(theMeterRegistry, responses, "cds.hooks.responses");
+	}
+
+	/**
+	 * Returns the memoized response for an identical earlier request, or calls the service and remembers its
+	 * response if the patient's data has not changed in the meantime.
+	 */
+	public CdsServiceResponseJson get(
+			String theServiceId, CdsServiceRequestJson theRequest, Supplier<CdsServiceResponseJson> theService) {
+		String patientId = patientId(theRequest);
+		long generation = generation(patientId);
+		ResponseKey key = new ResponseKey(theServiceId, patientId, generation, hash(theRequest));
+
+		CdsServiceResponseJson cached = responses.getIfPresent(key);
+		if (cached != null) {
+			logger.debug("Serving memoized response for {} and patient {}", theServiceId, patientId);
+			return cached;
+		}
+		CdsServiceResponseJson response = theService.get();
+		if (response != null && generation(patientId) == generation) {
+			responses.put(key, response);
+		}
+		return response;
+	}
+
+	public void invalidateAll() {
+		responses.invalidateAll();
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		resourceChanged(theOldResource);
+		resourceChanged(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	private void resourceChanged(IBaseResource theResource) {
+		if (theResource == null) {
+			return;
+		}
+		String resourceType = fhirContext.getResourceType(theResource);
+		if (KNOWLEDGE_RESOURCE_TYPES.contains(resourceType)) {
+			afterCommit(this::invalidateAll);
+			return;
+		}
+
+		Set<String> patientIds = new TreeSet<>();
+		if (PATIENT.equals(resourceType) && theResource.getIdElement().hasIdPart()) {
+			patientIds.add(theResource.getIdElement().getIdPart());
+		}
+		for (IIdType owner : fhirContext.newTerser().getCompartmentOwnersForResource(PATIENT, theResource, null)) {
+			patientIds.add(owner.getIdPart());
+		}
+		if (!patientIds.isEmpty()) {
+			// Once now, so requests racing the transaction cannot memoize, and once the data is visible
+			bump(patientIds);
+			afterCommit(() -> bump(patientIds));
+		}
+	}
+
+	private void bump(Set<String> thePatientIds) {
+		for (String patientId : thePatientIds) {
+			patientGenerations.put(patientId, generationSequence.incrementAndGet());
+		}
+	}
+
+	private static void afterCommit(Runnable theAction) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					theAction.run();
+				}
+			});
+		} else {
+			theAction.run();
+		}
+	}
+
+	private long generation(String thePatientId) {
+		if (thePatientId == null) {
+			return 0;
+		}
+		Long generation = patientGenerations.getIfPresent(thePatientId);
+		return generation != null ? generation : 0;
+	}
+
+	private static String patientId(CdsServiceRequestJson theRequest) {
+		if (theRequest.getContext() == null) {
+			return null;
+		}
+		String patientId = theRequest.getContext().getString("patientId");
+		return patientId != null ? StringUtils.removeStart(patientId, "Patient/") : null;
+	}
+
+	private String hash(CdsServiceRequestJson theRequest) {
+		JsonNode request = objectMapper.valueToTree(theRequest);
+		ObjectNode keyFields = objectMapper.createObjectNode();
+		for (String field : KEY_FIELDS) {
+			if (request.has(field)) {
+				keyFields.set(field, request.get(field));
+			}
+		}
+		try {
+			byte[] canonical = objectMapper.writeValueAsBytes(canonicalize(keyFields));
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(canonical));
+		} catch (JsonProcessingException | NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Unable to hash CDS Hooks request", e);
+		}
+	}
+
+	/**
+	 * Rebuilds the tree with object fields in sorted order, so that equivalent requests hash the same regardless of
+	 * the order the EHR sent their fields in.
+	 */
+	private JsonNode canonicalize(JsonNode theNode) {
+		if (theNode.isObject()) {
+			ObjectNode sorted = objectMapper.createObjectNode();
+			Set<String> names = new TreeSet<>();
+			for (Iterator<String> it = theNode.fieldNames(); it.hasNext(); ) {
+				names.add(it.next());
+			}
+			for (String name : names) {
+				sorted.set(name, canonicalize(theNode.get(name)));
+			}
+			return sorted;
+		}
+		if (theNode.isArray()) {
+			var array = objectMapper.createArrayNode();
+			theNode.forEach(element -> array.add(canonicalize(element)));
+			return array;
+		}
+		return theNode;
+	}
+
+	private record ResponseKey(String serviceId, String patientId, long generation, String requestHash) {}
+}
@@ -0,0 +1,32 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+public class CdsHooksResponseCacheProperties {
+
+	private boolean enabled = false;
+	private long ttlSeconds = 15;
+	private long maxSize = 1000;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public long getTtlSeconds() {
+		return ttlSeconds;
+	}
+
+	public void setTtlSeconds(long ttlSeconds) {
+		this.ttlSeconds = ttlSeconds;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+}
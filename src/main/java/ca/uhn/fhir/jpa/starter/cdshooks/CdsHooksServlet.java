@@ -4,12 +4,14 @@ import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceRequestJson;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonParser;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.http.entity.ContentType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,7 +20,15 @@ import org.springframework.beans.factory.annotation.Configurable;
 import org.springframework.beans.factory.annotation.Qualifier;
 
 import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServlet;
 import jakarta.servlet.http.HttpServletRequest;
@@ -37,6 +47,21 @@ public class CdsHooksServlet extends HttpServlet {
 	@Autowired
 	private ProviderConfiguration providerConfiguration;
 
+	@Autowired
+	private CdsHooksProperties cdsHooksProperties;
+
+	@Autowired
+	private CdsDiscoveryCache discoveryCache;
+
+	@Autowired
+	private CdsHooksAsyncExecutor asyncExecutor;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private CdsHooksResponseCache responseCache;
+
 	@Autowired
 	ICdsServiceRegistry cdsServiceRegistry;
 
@@ -47,6 +72,10 @@ public class CdsHooksServlet extends HttpServlet {
 	@Qualifier(CDS_HOOKS_OBJECT_MAPPER_FACTORY)
 	ObjectMapper objectMapper;
 
+	// Ids of the registered services, refreshed from the registry at most once a second on an unknown id
+	private volatile Set<String> serviceIds = Set.of();
+	private volatile long serviceIdsRefreshedAt;
+
 	protected ProviderConfiguration getProviderConfiguration() {
 		return this.providerConfiguration;
 	}
@@ -70,40 +99,31 @@ public class CdsHooksServlet extends HttpServlet {
 			throw new ServletException("This servlet is not configured to handle GET requests.");
 		}
 		ErrorHandling.setAccessControlHeaders(response, appProperties);
+		CdsServicesJson services = getServices();
+		CdsDiscoveryCache.Document document =
+				discoveryCache.get(services, () -> responseWriter().writeValueAsBytes(services));
+		response.setHeader("ETag", document.etag());
+		// Let clients keep the document but revalidate it on every poll
+		response.setHeader("Cache-Control", "no-cache");
+		if (document.matches(request.getHeader("If-None-Match"))) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
 		response.setHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
-		response.getWriter()
-				.println(new GsonBuilder()
-						.setPrettyPrinting()
-						.create()
-						.toJson(JsonParser.parseString(objectMapper.writeValueAsString(getServices()))));
+		response.setCharacterEncoding("UTF-8");
+		response.setContentLength(document.body().length);
+		response.getOutputStream().write(document.body());
 	}
 
 	@Override
 	protected void doPost(HttpServletRequest request, HttpServletResponse response)
 			throws ServletException, IOException {
+		if (cdsHooksProperties.getAsync().isEnabled() && request.isAsyncSupported()) {
+			evaluateAsync(request, response);
+			return;
+		}
 		try {
-			if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
-				throw new ServletException(String.format(
-						"Invalid content type %s. Please use application/json.", request.getContentType()));
-			}
-			logger.info(request.getRequestURI());
-			String service = request.getPathInfo().replace("/", "");
-
-			String requestJson = request.getReader().lines().collect(Collectors.joining());
-			CdsHooksRequest cdsHooksRequest = objectMapper.readValue(requestJson, CdsHooksRequest.class);
-			logRequestInfo(cdsHooksRequest, requestJson);
-
-			CdsServiceResponseJson serviceResponseJson = cdsServiceRegistry.callService(service, cdsHooksRequest);
-
-			// Using GSON pretty print format as Jackson's is ugly
-			String jsonResponse = new GsonBuilder()
-					.disableHtmlEscaping()
-					.setPrettyPrinting()
-					.create()
-					.toJson(JsonParser.parseString(objectMapper.writeValueAsString(serviceResponseJson)));
-			logger.info(jsonResponse);
-			response.setContentType("text/json;charset=UTF-8");
-			response.getWriter().println(jsonResponse);
+			writeBody(response, evaluate(request));
 		} catch (BaseServerResponseException e) {
 			ErrorHandling.handleError(response, "ERROR: Exception connecting to remote server.", e, appProperties);
 			logger.error(e.toString());
@@ -113,8 +133,181 @@ public class CdsHooksServlet extends HttpServlet {
 		}
 	}
 
-	private void logRequestInfo(CdsServiceRequestJson request, String jsonRequest) {
-		logger.info(jsonRequest);
+	/**
+	 * Hands the evaluation to the dedicated CDS Hooks pool and releases the container thread. When the pool's
+	 * queue is full the request is turned away with Retry-After; when the client goes away or the request times
+	 * out, the evaluation is cancelled.
+	 * <p>
+	 * The evaluation only produces the response body. Whichever of the result, the error, the timeout or the
+	 * rejection comes first is written by {@link #complete}; everything after it is dropped.
+	 */
+	private void evaluateAsync(HttpServletRequest request, HttpServletResponse response) {
+		CdsHooksAsyncProperties asyncProperties = cdsHooksProperties.getAsync();
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(asyncProperties.getTimeoutMs());
+		AtomicBoolean finished = new AtomicBoolean();
+		AtomicReference<Future<?>> evaluation = new AtomicReference<>();
+
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onComplete(AsyncEvent event) {
+				finished.set(true);
+			}
+
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				cancel(evaluation);
+				logger.warn("cds-hooks request timed out: {}", request.getRequestURI());
+				complete(
+						asyncContext,
+						finished,
+						timedOut -> reject(timedOut, HttpServletResponse.SC_SERVICE_UNAVAILABLE, asyncProperties));
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				logger.warn("cds-hooks request aborted: {}", String.valueOf(event.getThrowable()));
+				finished.set(true);
+				cancel(evaluation);
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+				// Nothing to do here
+			}
+		});
+
+		try {
+			evaluation.set(asyncExecutor.submit(() -> {
+				if (finished.get()) {
+					return;
+				}
+				ResponseAction action;
+				try {
+					Evaluation result = evaluate(request);
+					action = evaluated -> writeBody(evaluated, result);
+				} catch (BaseServerResponseException e) {
+					logger.error(e.toString());
+					action = failed ->
+							ErrorHandling.handleError(failed, "ERROR: Exception connecting to remote server.", e, appProperties);
+				} catch (Exception e) {
+					logger.error(e.toString());
+					action = failed ->
+							ErrorHandling.handleError(failed, "ERROR: Exception in cds-hooks processing.", e, appProperties);
+				}
+				complete(asyncContext, finished, action);
+			}));
+		} catch (RejectedExecutionException e) {
+			logger.warn("cds-hooks evaluation queue full, rejecting {}", request.getRequestURI());
+			complete(
+					asyncContext,
+					finished,
+					rejected -> reject(rejected, asyncProperties.getRejectStatus(), asyncProperties));
+		}
+	}
+
+	/**
+	 * Writes the response and completes the request, unless a response was already written or the request has
+	 * ended.
+	 */
+	private void complete(AsyncContext theAsyncContext, AtomicBoolean theFinished, ResponseAction theAction) {
+		if (!theFinished.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			theAction.write((HttpServletResponse) theAsyncContext.getResponse());
+		} catch (IOException e) {
+			logger.warn("Unable to write cds-hooks response: {}", e.getMessage());
+		} finally {
+			theAsyncContext.complete();
+		}
+	}
+
+	private static void cancel(AtomicReference<Future<?>> theEvaluation) {
+		Future<?> future = theEvaluation.get();
+		if (future != null) {
+			future.cancel(true);
+		}
+	}
+
+	private void reject(HttpServletResponse response, int theStatus, CdsHooksAsyncProperties theAsyncProperties)
+			throws IOException {
+		ErrorHandling.setAccessControlHeaders(response, appProperties);
+		response.setStatus(theStatus);
+		response.setHeader("Retry-After", String.valueOf(theAsyncProperties.getRetryAfterSeconds()));
+		response.getWriter().println("cds-hooks service is busy, please retry later.");
+	}
+
+	/**
+	 * Encodes the evaluated response straight into the servlet response.
+	 */
+	private void writeBody(HttpServletResponse response, Evaluation theEvaluation) throws IOException {
+		response.setContentType("text/json;charset=UTF-8");
+		long encodeStart = System.nanoTime();
+		responseWriter().writeValue(response.getOutputStream(), theEvaluation.response());
+		CdsHooksMetrics.recordPhase(meterRegistry, theEvaluation.serviceTag(), CdsHooksMetrics.PHASE_ENCODE, encodeStart);
+		CdsHooksMetrics.recordPhase(meterRegistry, theEvaluation.serviceTag(), CdsHooksMetrics.PHASE_TOTAL, theEvaluation.start());
+	}
+
+	/**
+	 * Evaluates the hook, leaving the servlet response untouched.
+	 */
+	private Evaluation evaluate(HttpServletRequest request) throws ServletException, IOException {
+		if (request.getContentType() == null || !request.getContentType().startsWith("application/json")) {
+			throw new ServletException(String.format(
+					"Invalid content type %s. Please use application/json.", request.getContentType()));
+		}
+		logger.info(request.getRequestURI());
+		String service = request.getPathInfo().replace("/", "");
+		String serviceTag = serviceTag(service);
+
+		long start = System.nanoTime();
+		CdsHooksRequest cdsHooksRequest = objectMapper.readValue(request.getInputStream(), CdsHooksRequest.class);
+		CdsHooksMetrics.recordPhase(meterRegistry, serviceTag, CdsHooksMetrics.PHASE_PARSE, start);
+		logRequestInfo(cdsHooksRequest);
+
+		// Prefetch and $apply are timed where they happen, the total covers everything in between
+		CdsServiceResponseJson serviceResponseJson = cdsHooksProperties.getResponseCache().isEnabled()
+				? responseCache.get(service, cdsHooksRequest, () -> cdsServiceRegistry.callService(service, cdsHooksRequest))
+				: cdsServiceRegistry.callService(service, cdsHooksRequest);
+
+		if (cdsHooksProperties.isLogBodies()) {
+			logger.info(objectMapper.writeValueAsString(serviceResponseJson));
+		}
+		return new Evaluation(serviceTag, start, serviceResponseJson);
+	}
+
+	/**
+	 * The service id to tag metrics with. Only registered services get a series of their own, so that requests for
+	 * arbitrary paths cannot create new ones.
+	 */
+	private String serviceTag(String theService) {
+		if (serviceIds.contains(theService)) {
+			return theService;
+		}
+		long now = System.currentTimeMillis();
+		if (now - serviceIdsRefreshedAt >= 1000) {
+			serviceIdsRefreshedAt = now;
+			CdsServicesJson services = getServices();
+			serviceIds = services == null || services.getServices() == null
+					? Set.of()
+					: services.getServices().stream().map(CdsServiceJson::getId).collect(Collectors.toUnmodifiableSet());
+		}
+		return serviceIds.contains(theService) ? theService : CdsHooksMetrics.UNKNOWN_SERVICE;
+	}
+
+	/**
+	 * Encodes in one pass. Pretty printing is opt-in as it only helps humans reading the raw response.
+	 */
+	private ObjectWriter responseWriter() {
+		ObjectWriter writer = objectMapper.writer().without(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		return cdsHooksProperties.isPrettyPrint() ? writer.withDefaultPrettyPrinter() : writer;
+	}
+
+	private void logRequestInfo(CdsServiceRequestJson request) throws IOException {
+		if (cdsHooksProperties.isLogBodies()) {
+			logger.info(objectMapper.writeValueAsString(request));
+		}
 		logger.info("cds-hooks hook instance: {}", request.getHookInstance());
 		logger.info("cds-hooks local server address: {}", appProperties.getServer_address());
 		logger.info("cds-hooks fhir server address: {}", request.getFhirServer());
@@ -126,4 +319,11 @@ public class CdsHooksServlet extends HttpServlet {
 	private CdsServicesJson getServices() {
 		return cdsServiceRegistry.getCdsServicesJson();
 	}
+
+	private record Evaluation(String serviceTag, long start, CdsServiceResponseJson response) {}
+
+	@FunctionalInterface
+	private interface ResponseAction {
+		void write(HttpServletResponse theResponse) throws IOException;
+	}
 }
@@ -0,0 +1,291 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps one {@link IGenericClient} per remote FHIR server base url, each with its own keep-alive connection pool,
+ * so consecutive hook calls against the same EHR reuse connections instead of paying connection setup each time.
+ * <p>
+ * Cached clients are shared between hook calls, so they carry no credentials; the caller's access token must be
+ * added to each request. Callers lease a client for the duration of a request; a client evicted from the cache is
+ * closed once its last lease is released.
+ * <p>
+ * Pool meters are tagged with the server only for the configured metered servers, and removed when their client is
+ * evicted; all other servers share the {@code server=other} timer and counter.
+ */
+public class PrefetchClientCache {
+	private static final Logger logger = LoggerFactory.getLogger(PrefetchClientCache.class);
+	static final String OTHER_SERVER_TAG = "other";
+
+	private final FhirContext fhirContext;
+	private final CdsHooksPrefetchProperties prefetchProperties;
+	private final MeterRegistry meterRegistry;
+	private final Set<String> meteredServers = new HashSet<>();
+	private final Cache<String, PooledClient> clients;
+
+	public PrefetchClientCache(
+			FhirContext theFhirContext,
+			CdsHooksPrefetchProperties thePrefetchProperties,
+			MeterRegistry theMeterRegistry) {
+		fhirContext = theFhirContext;
+		prefetchProperties = thePrefetchProperties;
+		meterRegistry = theMeterRegistry;
+		thePrefetchProperties.getMeteredServers().forEach(server -> meteredServers.add(normalizeBaseUrl(server)));
+		clients = Caffeine.newBuilder()
+				.maximumSize(thePrefetchProperties.getMaxCachedClients())
+				.<String, PooledClient>removalListener((server, client, cause) -> {
+					if (client != null) {
+						client.evict();
+					}
+				})
+				.build();
+	}
+
+	/**
+	 * Leases the client for the given server base url; the lease must be closed once the request completed.
+	 */
+	public Lease lease(String theServerBase) {
+		String serverBase = normalizeBaseUrl(theServerBase);
+		while (true) {
+			PooledClient client = clients.get(serverBase, this::createClient);
+			if (client.retain()) {
+				return new Lease(client);
+			}
+			// Evicted and closed between the lookup and the lease; the next lookup creates a fresh client
+			clients.asMap().remove(serverBase, client);
+		}
+	}
+
+	public void closeAll() {
+		clients.invalidateAll();
+		clients.cleanUp();
+	}
+
+	/**
+	 * Lower-cases the scheme and host and strips trailing slashes, so that spellings of the same base url share one
+	 * client. The path is left as is, as FHIR servers may treat it case-sensitively.
+	 */
+	static String normalizeBaseUrl(String theServerBase) {
+		String serverBase = StringUtils.stripEnd(theServerBase.trim(), "/");
+		try {
+			URI uri = new URI(serverBase);
+			if (uri.getScheme() == null || uri.getHost() == null) {
+				return serverBase;
+			}
+			return new URI(
+							uri.getScheme().toLowerCase(Locale.ROOT),
+							uri.getUserInfo(),
+							uri.getHost().toLowerCase(Locale.ROOT),
+							uri.getPort(),
+							uri.getPath(),
+							uri.getQuery(),
+							null)
+					.toString();
+		} catch (URISyntaxException e) {
+			return serverBase;
+		}
+	}
+
+	private PooledClient createClient(String theServerBase) {
+		logger.info("Creating pooled prefetch client for {}", theServerBase);
+		boolean metered = meteredServers.contains(theServerBase);
+		String serverTag = metered ? theServerBase : OTHER_SERVER_TAG;
+		InstrumentedConnectionManager connectionManager = new InstrumentedConnectionManager(serverTag, meterRegistry);
+		connectionManager.setMaxTotal(prefetchProperties.getMaxConnectionsPerServer());
+		connectionManager.setDefaultMaxPerRoute(prefetchProperties.getMaxConnectionsPerServer());
+		connectionManager.setValidateAfterInactivity(2000);
+
+		CloseableHttpClient httpClient = HttpClients.custom()
+				.setConnectionManager(connectionManager)
+				.setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+				.evictIdleConnections(60, TimeUnit.SECONDS)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setConnectTimeout((int) prefetchProperties.getQueryTimeoutMs())
+						.setConnectionRequestTimeout((int) prefetchProperties.getQueryTimeoutMs())
+						.setSocketTimeout((int) prefetchProperties.getQueryTimeoutMs())
+						.build())
+				.build();
+
+		// Gauges read one pool, so they only exist for servers metered on their own; the shared server=other
+		// timer and counter outlive any single client
+		List<Meter> meters = new ArrayList<>();
+		if (metered) {
+			meters.add(connectionManager.waitTimer);
+			meters.add(connectionManager.connectCounter);
+			meters.add(Gauge.builder("cds.hooks.prefetch.pool.leased", connectionManager, m -> m.getTotalStats().getLeased())
+					.description("Connections currently leased from the prefetch pool")
+					.tag("server", serverTag)
+					.register(meterRegistry));
+			meters.add(Gauge.builder("cds.hooks.prefetch.pool.available", connectionManager, m -> m.getTotalStats().getAvailable())
+					.description("Idle keep-alive connections in the prefetch pool")
+					.tag("server", serverTag)
+					.register(meterRegistry));
+			meters.add(Gauge.builder("cds.hooks.prefetch.pool.pending", connectionManager, m -> m.getTotalStats().getPending())
+					.description("Requests waiting for a connection from the prefetch pool")
+					.tag("server", serverTag)
+					.register(meterRegistry));
+		}
+
+		// A private factory so that the pool is not shared through the FhirContext's client factory
+		ApacheRestfulClientFactory clientFactory = new ApacheRestfulClientFactory(fhirContext);
+		clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+		clientFactory.setHttpClient(httpClient);
+		return new PooledClient(clientFactory.newGenericClient(theServerBase), httpClient, meters);
+	}
+
+	/**
+	 * A leased client, usable until the lease is closed.
+	 */
+	public static final class Lease implements AutoCloseable {
+		private final PooledClient pooledClient;
+		private boolean closed;
+
+		private Lease(PooledClient thePooledClient) {
+			pooledClient = thePooledClient;
+		}
+
+		public IGenericClient client() {
+			return pooledClient.client;
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				pooledClient.release();
+			}
+		}
+	}
+
+	/**
+	 * A cached client with its pool and meters. It starts with the cache's own reference; every lease adds one, and
+	 * the pool is closed when eviction and the leases have released them all.
+	 */
+	private final class PooledClient {
+		private final IGenericClient client;
+		private final CloseableHttpClient httpClient;
+		private final List<Meter> meters;
+		private final AtomicInteger references = new AtomicInteger(1);
+		private final AtomicBoolean evicted = new AtomicBoolean();
+
+		PooledClient(IGenericClient theClient, CloseableHttpClient theHttpClient, List<Meter> theMeters) {
+			client = theClient;
+			httpClient = theHttpClient;
+			meters = theMeters;
+		}
+
+		boolean retain() {
+			while (true) {
+				int current = references.get();
+				if (current == 0) {
+					return false;
+				}
+				if (references.compareAndSet(current, current + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void evict() {
+			if (evicted.compareAndSet(false, true)) {
+				release();
+			}
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				meters.forEach(meterRegistry::remove);
+				try {
+					httpClient.close();
+				} catch (IOException e) {
+					logger.warn("Failed to close prefetch client: {}", e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records how long requests wait for a pooled connection and how many new connections (and so TLS handshakes
+	 * for https servers) are opened.
+	 */
+	private static class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+		private final Timer waitTimer;
+		private final Counter connectCounter;
+
+		InstrumentedConnectionManager(String theServerTag, MeterRegistry theMeterRegistry) {
+			waitTimer = Timer.builder("cds.hooks.prefetch.pool.wait")
+					.description("Time spent waiting for a connection from the prefetch pool")
+					.tag("server", theServerTag)
+					.register(theMeterRegistry);
+			connectCounter = Counter.builder("cds.hooks.prefetch.pool.connects")
+					.description("New connections opened by the prefetch pool, including TLS handshakes")
+					.tag("server", theServerTag)
+					.register(theMeterRegistry);
+		}
+
+		@Override
+		public ConnectionRequest requestConnection(HttpRoute theRoute, Object theState) {
+			ConnectionRequest delegate = super.requestConnection(theRoute, theState);
+			return new ConnectionRequest() {
+				@Override
+				public HttpClientConnection get(long theTimeout, TimeUnit theUnit)
+						throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+					long start = System.nanoTime();
+					try {
+						return delegate.get(theTimeout, theUnit);
+					} finally {
+						waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+					}
+				}
+
+				@Override
+				public boolean cancel() {
+					return delegate.cancel();
+				}
+			};
+		}
+
+		@Override
+		public void connect(HttpClientConnection theConnection, HttpRoute theRoute, int theConnectTimeout, HttpContext theContext)
+				throws IOException {
+			connectCounter.increment();
+			super.connect(theConnection, theRoute, theConnectTimeout, theContext);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * In-memory index of the codes in a pre-expanded ValueSet, used by prefetch queries that select resources by code.
+ * <p>
+ * Codes are matched without regard to system, the same as a bare {@code code=} token search.
+ */
+public class PrefetchCodeIndex {
+
+	private final String valueSetUrl;
+	private final List<String> codes;
+	private final Set<String> codeSet;
+
+	PrefetchCodeIndex(String valueSetUrl, Set<String> codes) {
+		this.valueSetUrl = valueSetUrl;
+		this.codes = List.copyOf(codes);
+		this.codeSet = Collections.unmodifiableSet(new HashSet<>(codes));
+	}
+
+	/**
+	 * Loads the codes from the expansion of the given ValueSet, falling back to the concepts enumerated in its compose.
+	 */
+	public static PrefetchCodeIndex fromValueSet(FhirContext theFhirContext, Resource theValueSet) throws IOException {
+		IBaseResource valueSet;
+		try (InputStream inputStream = theValueSet.getInputStream()) {
+			valueSet = theFhirContext.newJsonParser()
+					.parseResource(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+		}
+
+		FhirTerser terser = theFhirContext.newTerser();
+		Set<String> codes = new LinkedHashSet<>();
+		for (IBase contains : terser.getValues(valueSet, "ValueSet.expansion.contains")) {
+			addCode(terser, contains, codes);
+		}
+		if (codes.isEmpty()) {
+			for (IBase concept : terser.getValues(valueSet, "ValueSet.compose.include.concept")) {
+				addCode(terser, concept, codes);
+			}
+		}
+		if (codes.isEmpty()) {
+			throw new ErrorHandling.CdsHooksError("ValueSet " + theValueSet.getDescription() + " has no codes");
+		}
+		return new PrefetchCodeIndex(terser.getSinglePrimitiveValueOrNull(valueSet, "url"), codes);
+	}
+
+	private static void addCode(FhirTerser theTerser, IBase theElement, Set<String> theCodes) {
+		String code = theTerser.getSinglePrimitiveValueOrNull(theElement, "code");
+		if (code != null) {
+			theCodes.add(code);
+		}
+	}
+
+	public String getValueSetUrl() {
+		return valueSetUrl;
+	}
+
+	public int size() {
+		return codes.size();
+	}
+
+	public boolean contains(String theCode) {
+		return codeSet.contains(theCode);
+	}
+
+	/**
+	 * Returns true if any coding found at the given FHIRPath-like path (e.g. {@code Observation.code.coding.code})
+	 * is in the index.
+	 */
+	public boolean matches(FhirTerser theTerser, IBaseResource theResource, String theCodePath) {
+		for (IPrimitiveType<?> code : theTerser.getValues(theResource, theCodePath, IPrimitiveType.class)) {
+			if (codeSet.contains(code.getValueAsString())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Splits the codes into comma separated lists that each fit in a url parameter of the given length.
+	 */
+	public List<String> toCodeParameterChunks(int theMaxLength) {
+		List<String> chunks = new ArrayList<>();
+		StringBuilder chunk = new StringBuilder();
+		for (String code : codes) {
+			if (chunk.length() > 0 && chunk.length() + 1 + code.length() > theMaxLength) {
+				chunks.add(chunk.toString());
+				chunk.setLength(0);
+			}
+			if (chunk.length() > 0) {
+				chunk.append(',');
+			}
+			chunk.append(code);
+		}
+		if (chunk.length() > 0) {
+			chunks.add(chunk.toString());
+		}
+		return chunks;
+	}
+}
@@ -1,8 +1,17 @@
 package ca.uhn.fhir.jpa.starter.cdshooks;
 
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import ca.uhn.fhir.jpa.starter.common.security.AuthorizationRuleCompiler;
+import ca.uhn.fhir.jpa.starter.common.security.VerifiedJwtCache;
 import ca.uhn.fhir.jpa.starter.cr.CrCommonConfig;
 import ca.uhn.fhir.jpa.starter.cr.CrConfigCondition;
 import ca.uhn.fhir.jpa.starter.cr.CrProperties;
+import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsHooksDaoAuthorizationSvc;
 import ca.uhn.hapi.fhir.cdshooks.config.CdsHooksConfig;
 import ca.uhn.hapi.fhir.cdshooks.svc.CdsHooksContextBooter;
@@ -16,31 +25,54 @@ import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchDaoSvc;
 import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchFhirClientSvc;
 import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchSvc;
 import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsResolutionStrategySvc;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
+
+import static ca.uhn.hapi.fhir.cdshooks.config.CdsHooksConfig.CDS_HOOKS_OBJECT_MAPPER_FACTORY;
 
 @Configuration
 @Conditional({CdsHooksConfigCondition.class, CrConfigCondition.class})
 @Import({CdsHooksConfig.class, CrCommonConfig.class})
 public class StarterCdsHooksConfig {
 
-//	@Bean
-//	CdsPrefetchSvc cdsPrefetchSvc(
-//		CdsResolutionStrategySvc theCdsResolutionStrategySvc,
-//		CdsPrefetchDaoSvc theResourcePrefetchDao,
-//		CdsPrefetchFhirClientSvc theResourcePrefetchFhirClient,
-//		ICdsHooksDaoAuthorizationSvc theCdsHooksDaoAuthorizationSvc) {
-//		return new ModuleConfigurationPrefetchSvc(
-//			theCdsResolutionStrategySvc,
-//			theResourcePrefetchDao,
-//			theResourcePrefetchFhirClient,
-//			theCdsHooksDaoAuthorizationSvc);
-//	}
+	/**
+	 * Replaces the prefetch service of the CDS Hooks module, which is registered under its own name, so that
+	 * prefetch runs concurrently and is resolved in-process when the hook points back at this server.
+	 */
+	@Bean
+	@Primary
+	CdsPrefetchSvc moduleConfigurationPrefetchSvc(
+			CdsResolutionStrategySvc theCdsResolutionStrategySvc,
+			CdsPrefetchDaoSvc theResourcePrefetchDao,
+			CdsPrefetchFhirClientSvc theResourcePrefetchFhirClient,
+			ICdsHooksDaoAuthorizationSvc theCdsHooksDaoAuthorizationSvc,
+			CdsHooksProperties theCdsHooksProperties,
+			AppProperties theAppProperties,
+			MeterRegistry theMeterRegistry,
+			VerifiedJwtCache theVerifiedJwtCache,
+			AuthorizationRuleCompiler theRuleCompiler,
+			RestfulServer theRestfulServer) {
+		return new ModuleConfigurationPrefetchSvc(
+				theCdsResolutionStrategySvc,
+				theResourcePrefetchDao,
+				theResourcePrefetchFhirClient,
+				theCdsHooksDaoAuthorizationSvc,
+				theCdsHooksProperties,
+				theAppProperties,
+				theMeterRegistry,
+				theVerifiedJwtCache,
+				theRuleCompiler,
+				theRestfulServer);
+	}
 
 	@Bean
 	public ICdsCrDiscoveryServiceRegistry cdsCrDiscoveryServiceRegistry() {
@@ -91,6 +123,57 @@ public class StarterCdsHooksConfig {
 		return new CdsHooksDaoAuthorizationSvc();
 	}
 
+	@Bean(destroyMethod = "shutdown")
+	public CdsHooksAsyncExecutor cdsHooksAsyncExecutor(CdsHooksProperties theCdsHooksProperties, MeterRegistry theMeterRegistry) {
+		return new CdsHooksAsyncExecutor(theCdsHooksProperties.getAsync(), theMeterRegistry);
+	}
+
+	@Bean
+	public CdsHooksResponseCache cdsHooksResponseCache(
+			FhirContext theFhirContext,
+			@Qualifier(CDS_HOOKS_OBJECT_MAPPER_FACTORY) ObjectMapper theObjectMapper,
+			CdsHooksProperties theCdsHooksProperties,
+			IInterceptorService theInterceptorService,
+			MeterRegistry theMeterRegistry) {
+		CdsHooksResponseCache responseCache = new CdsHooksResponseCache(
+				theFhirContext, theObjectMapper, theCdsHooksProperties.getResponseCache(), theMeterRegistry);
+		if (theCdsHooksProperties.getResponseCache().isEnabled()) {
+			theInterceptorService.registerInterceptor(responseCache);
+		}
+		return responseCache;
+	}
+
+	@Bean(destroyMethod = "close")
+	public CdsDiscoveryPrefetchStore cdsDiscoveryPrefetchStore(
+			FhirContext theFhirContext,
+			CdsHooksProperties theCdsHooksProperties,
+			IResourceChangeListenerRegistry theResourceChangeListenerRegistry) {
+		CdsDiscoveryPrefetchStore store =
+				new CdsDiscoveryPrefetchStore(theFhirContext, theCdsHooksProperties.getDiscovery().getCacheFile());
+		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				"Library", SearchParameterMap.newSynchronous(), store, 1000);
+		store.register();
+		return store;
+	}
+
+	@Bean
+	public CdsDiscoveryPrecomputer cdsDiscoveryPrecomputer(
+			CdsDiscoveryPrefetchStore theCdsDiscoveryPrefetchStore,
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			CdsHooksProperties theCdsHooksProperties) {
+		return new CdsDiscoveryPrecomputer(
+				theCdsDiscoveryPrefetchStore, theDaoRegistry, theRestfulServer, theCdsHooksProperties.getDiscovery());
+	}
+
+	@Bean
+	public CdsDiscoveryCache cdsDiscoveryCache(IResourceChangeListenerRegistry theResourceChangeListenerRegistry) {
+		CdsDiscoveryCache discoveryCache = new CdsDiscoveryCache();
+		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
+				"PlanDefinition", SearchParameterMap.newSynchronous(), discoveryCache, 1000);
+		return discoveryCache;
+	}
+
 	@Bean
 	public ServletRegistrationBean<CdsHooksServlet> cdsHooksRegistrationBean(AutowireCapableBeanFactory beanFactory) {
 		CdsHooksServlet cdsHooksServlet = new CdsHooksServlet();
@@ -101,6 +184,7 @@ public class StarterCdsHooksConfig {
 		registrationBean.setServlet(cdsHooksServlet);
 		registrationBean.addUrlMappings("/cds-services/*");
 		registrationBean.setLoadOnStartup(1);
+		registrationBean.setAsyncSupported(true);
 		return registrationBean;
 	}
 }
@@ -3,7 +3,9 @@ package ca.uhn.fhir.jpa.starter.cdshooks;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsConfigService;
 import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceRequestJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
 import ca.uhn.hapi.fhir.cdshooks.svc.cr.CdsCrServiceR4;
+import io.micrometer.core.instrument.Metrics;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Parameters;
 import org.opencds.cqf.fhir.api.Repository;
@@ -15,16 +17,40 @@ import static ca.uhn.hapi.fhir.cdshooks.svc.cr.CdsCrConstants.APPLY_PARAMETER_DA
 import static org.opencds.cqf.fhir.utility.r4.Parameters.part;
 
 public class UpdatedCdsCrServiceR4 extends CdsCrServiceR4 {
+	// Instances are created reflectively, one per call, so the timer goes through the global registry that
+	// Spring Boot binds its MeterRegistry to
+	private final String serviceId;
+	private long applyStart;
+
 	public UpdatedCdsCrServiceR4(RequestDetails theRequestDetails, Repository theRepository, ICdsConfigService theCdsConfigService) {
 		super(theRequestDetails, theRepository, theCdsConfigService);
+		serviceId = theRequestDetails != null && theRequestDetails.getId() != null
+				? theRequestDetails.getId().getIdPart()
+				: null;
 	}
 
 	@Override
 	public Parameters encodeParams(CdsServiceRequestJson theJson) {
+		applyStart = System.nanoTime();
 		Parameters parameters = super.encodeParams(theJson);
 		if (parameters.hasParameter(APPLY_PARAMETER_DATA)) {
 			parameters.addParameter(part("useServerData", new BooleanType(false)));
 		}
 		return parameters;
 	}
+
+	/**
+	 * Called with the result of {@code $apply}, so the apply phase spans parameter encoding, the PlanDefinition
+	 * apply with its CQL evaluation, and the conversion of the result into cards.
+	 */
+	@Override
+	public CdsServiceResponseJson encodeResponse(Object theResponse) {
+		try {
+			return super.encodeResponse(theResponse);
+		} finally {
+			if (applyStart != 0) {
+				CdsHooksMetrics.recordPhase(Metrics.globalRegistry, serviceId, CdsHooksMetrics.PHASE_APPLY, applyStart);
+			}
+		}
+	}
 }
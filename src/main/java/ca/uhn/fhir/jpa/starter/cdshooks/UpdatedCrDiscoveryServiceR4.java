@@ -1,12 +1,111 @@
 package ca.uhn.fhir.jpa.starter.cdshooks;
 
 import ca.uhn.hapi.fhir.cdshooks.svc.cr.discovery.CrDiscoveryServiceR4;
+import ca.uhn.hapi.fhir.cdshooks.svc.cr.discovery.PrefetchUrlList;
 import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.RelatedArtifact;
 import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.utility.search.Searches;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
 
 public class UpdatedCrDiscoveryServiceR4 extends CrDiscoveryServiceR4 {
 	public UpdatedCrDiscoveryServiceR4(IIdType thePlanDefinitionId, Repository theRepository) {
 		super(thePlanDefinitionId, theRepository);
 		myMaxUriLength = 6000;
 	}
+
+	/**
+	 * Looks the templates up in the {@link CdsDiscoveryPrefetchStore} before walking the libraries and their data
+	 * requirements.
+	 */
+	@Override
+	public PrefetchUrlList getPrefetchUrlList(PlanDefinition thePlanDefinition) {
+		CdsDiscoveryPrefetchStore store = CdsDiscoveryPrefetchStore.forContext(myRepository.fhirContext());
+		if (store == null) {
+			return super.getPrefetchUrlList(thePlanDefinition);
+		}
+		String fingerprint = store.fingerprint(
+				thePlanDefinition.getIdElement().toUnqualifiedVersionless().getValue(),
+				version(thePlanDefinition),
+				() -> fingerprint(thePlanDefinition));
+		List<String> templates = store.get(fingerprint, () -> super.getPrefetchUrlList(thePlanDefinition));
+		PrefetchUrlList prefetchUrlList = new PrefetchUrlList();
+		templates.forEach(prefetchUrlList::add);
+		return prefetchUrlList;
+	}
+
+	/**
+	 * Identifies the inputs of the derivation: the PlanDefinition and every Library it depends on, directly or
+	 * through depends-on artifacts, each by canonical url, business version and resource version.
+	 */
+	private String fingerprint(PlanDefinition thePlanDefinition) {
+		StringBuilder fingerprint = new StringBuilder("r4|").append(myMaxUriLength);
+		append(fingerprint, thePlanDefinition);
+		Set<String> visited = new HashSet<>();
+		for (CanonicalType library : thePlanDefinition.getLibrary()) {
+			appendLibrary(fingerprint, library.getValue(), visited);
+		}
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(fingerprint.toString().getBytes(StandardCharsets.UTF_8));
+			return HexFormat.of().formatHex(hash);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	private static String version(MetadataResource theResource) {
+		return theResource.getMeta().getVersionId()
+				+ '|'
+				+ (theResource.getMeta().hasLastUpdated() ? theResource.getMeta().getLastUpdated().getTime() : null);
+	}
+
+	private void appendLibrary(StringBuilder theFingerprint, String theCanonical, Set<String> theVisited) {
+		if (theCanonical == null || !theVisited.add(theCanonical)) {
+			return;
+		}
+		Bundle libraries = myRepository.search(Bundle.class, Library.class, Searches.byCanonical(theCanonical));
+		if (!libraries.hasEntry()) {
+			theFingerprint.append('\n').append(theCanonical).append("|unresolved");
+			return;
+		}
+		for (Bundle.BundleEntryComponent entry : libraries.getEntry()) {
+			Library library = (Library) entry.getResource();
+			append(theFingerprint, library);
+			for (RelatedArtifact artifact : library.getRelatedArtifact()) {
+				if (artifact.getType() == RelatedArtifact.RelatedArtifactType.DEPENDSON
+						&& artifact.hasResource()
+						&& artifact.getResource().contains("/Library/")) {
+					appendLibrary(theFingerprint, artifact.getResource(), theVisited);
+				}
+			}
+		}
+	}
+
+	private static void append(StringBuilder theFingerprint, MetadataResource theResource) {
+		theFingerprint
+				.append('\n')
+				.append(theResource.getIdElement().toUnqualifiedVersionless().getValue())
+				.append('|')
+				.append(theResource.getUrl())
+				.append('|')
+				.append(theResource.getVersion())
+				.append('|')
+				.append(theResource.getMeta().getVersionId())
+				.append('|')
+				.append(theResource.getMeta().hasLastUpdated()
+						? theResource.getMeta().getLastUpdated().getTime()
+						: null);
+	}
 }
@@ -0,0 +1,66 @@
+package ca.uhn.fhir.jpa.starter.common;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Supplier;
+
+/**
+ * Caches an OAuth access token until shortly before it expires. Concurrent callers that find the
+ * token expired wait for a single refresh rather than each requesting a new token.
+ * <p>
+ * The token is refreshed {@code refreshSkew} before it expires, or halfway through its lifetime for
+ * tokens that live less than twice the skew. A token the server rejects can be dropped early through
+ * {@link #invalidate()}.
+ */
+public class AccessTokenHolder {
+	private final Supplier<IssuedToken> tokenSupplier;
+	private final Duration refreshSkew;
+	private final Clock clock;
+
+	private volatile String accessToken;
+	private volatile Instant refreshAt = Instant.MIN;
+
+	public AccessTokenHolder(Supplier<IssuedToken> tokenSupplier, Duration refreshSkew) {
+		this(tokenSupplier, refreshSkew, Clock.systemUTC());
+	}
+
+	AccessTokenHolder(Supplier<IssuedToken> tokenSupplier, Duration refreshSkew, Clock clock) {
+		this.tokenSupplier = tokenSupplier;
+		this.refreshSkew = refreshSkew;
+		this.clock = clock;
+	}
+
+	public String getAccessToken() {
+		if (isFresh()) {
+			return accessToken;
+		}
+		synchronized (this) {
+			if (!isFresh()) {
+				IssuedToken issued = tokenSupplier.get();
+				Instant now = clock.instant();
+				accessToken = issued.accessToken();
+				// Tokens without an expiry are re-requested on next use
+				refreshAt = issued.expiresInSeconds() > 0
+						? now.plusSeconds(issued.expiresInSeconds()).minus(skewFor(issued.expiresInSeconds()))
+						: now;
+			}
+			return accessToken;
+		}
+	}
+
+	public synchronized void invalidate() {
+		refreshAt = Instant.MIN;
+	}
+
+	private Duration skewFor(long theExpiresInSeconds) {
+		Duration halfLifetime = Duration.ofSeconds(theExpiresInSeconds).dividedBy(2);
+		return refreshSkew.compareTo(halfLifetime) > 0 ? halfLifetime : refreshSkew;
+	}
+
+	private boolean isFresh() {
+		return accessToken != null && clock.instant().isBefore(refreshAt);
+	}
+
+	public record IssuedToken(String accessToken, long expiresInSeconds) {}
+}
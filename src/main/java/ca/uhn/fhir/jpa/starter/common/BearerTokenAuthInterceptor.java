@@ -1,23 +1,45 @@
 package ca.uhn.fhir.jpa.starter.common;
 
+import ca.uhn.fhir.rest.api.Constants;
 import ca.uhn.fhir.rest.client.api.IClientInterceptor;
 import ca.uhn.fhir.rest.client.api.IHttpRequest;
 import ca.uhn.fhir.rest.client.api.IHttpResponse;
 
+import java.util.function.Supplier;
+
 public class BearerTokenAuthInterceptor implements IClientInterceptor {
-    private final String token;
+    private final Supplier<String> tokenSupplier;
+    private final Runnable onUnauthorized;
 
     public BearerTokenAuthInterceptor(String token) {
-        this.token = token;
+        this(() -> token);
+    }
+
+    /**
+     * Resolves the token on every request, so a long-lived client always sends a current token.
+     */
+    public BearerTokenAuthInterceptor(Supplier<String> tokenSupplier) {
+        this(tokenSupplier, () -> {});
+    }
+
+    /**
+     * As above, and calls {@code onUnauthorized} when the server answers 401, so that a revoked token
+     * is not sent again.
+     */
+    public BearerTokenAuthInterceptor(Supplier<String> tokenSupplier, Runnable onUnauthorized) {
+        this.tokenSupplier = tokenSupplier;
+        this.onUnauthorized = onUnauthorized;
     }
 
     @Override
     public void interceptRequest(IHttpRequest theRequest) {
-        theRequest.addHeader("Authorization", "Bearer " + token);
+        theRequest.addHeader("Authorization", "Bearer " + tokenSupplier.get());
     }
 
     @Override
     public void interceptResponse(IHttpResponse theResponse) {
-        // Nothing to do here
+        if (theResponse.getStatus() == Constants.STATUS_HTTP_401_CLIENT_UNAUTHORIZED) {
+            onUnauthorized.run();
+        }
     }
-} 
\ No newline at end of file
+}
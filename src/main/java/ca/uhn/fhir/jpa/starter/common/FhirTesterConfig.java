@@ -1,11 +1,18 @@
 package ca.uhn.fhir.jpa.starter.common;
 
+import java.time.Duration;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
 import javax.net.ssl.SSLContext;
 
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -49,14 +56,17 @@ public class FhirTesterConfig {
 	private String clientId;
 	@Value("${spring.config.oauth2.client-secret}")
 	private String clientSecret;
+	@Value("${hapi.fhir.tester.home.max_connections:20}")
+	private int maxConnections;
 
 	private final SSLContext sslContext;
+	private final RestTemplate restTemplate = new RestTemplate();
 
 	public FhirTesterConfig(SSLContext sslContext) {
 		this.sslContext = sslContext;
 	}
 
-	private String getAccessToken() {
+	private AccessTokenHolder.IssuedToken getAccessToken() {
         try {
             logger.info("Attempting to get access token from {}", authServerUrl);
             
@@ -70,7 +80,6 @@ public class FhirTesterConfig {
 
             HttpEntity<MultiValueMap<String, String>> request = new HttpEntity<>(map, headers);
 
-            RestTemplate restTemplate = new RestTemplate();
             String tokenUrl = authServerUrl + "/protocol/openid-connect/token";
             
             logger.debug("Token request URL: {}", tokenUrl);
@@ -85,7 +94,9 @@ public class FhirTesterConfig {
                 logger.debug("Raw token response: {}", response.getBody());
                 if (response.getBody().getAccessToken() != null) {
                     logger.info("Successfully obtained access token");
-                    return response.getBody().getAccessToken();
+                    Integer expiresIn = response.getBody().getExpiresIn();
+                    return new AccessTokenHolder.IssuedToken(
+                            response.getBody().getAccessToken(), expiresIn != null ? expiresIn : 0);
                 } else {
                     logger.error("Received null access token from OAuth server");
                     throw new RuntimeException("Failed to obtain access token - null access token");
@@ -100,9 +111,28 @@ public class FhirTesterConfig {
         }
 	}
 
+	/**
+	 * One pooled client shared by every tester page load, closed with the application context.
+	 */
+	@Bean(destroyMethod = "close")
+	public CloseableHttpClient testerHttpClient() {
+		return HttpClients.custom()
+				.setSSLContext(sslContext)
+				.setMaxConnTotal(maxConnections)
+				.setMaxConnPerRoute(maxConnections)
+				.setDefaultRequestConfig(RequestConfig.custom()
+						.setSocketTimeout(5 * 60 * 1000)
+						.build())
+				.build();
+	}
+
 	@Bean
-	public TesterConfig testerConfig() {
+	public TesterConfig testerConfig(@Qualifier("testerHttpClient") CloseableHttpClient httpClient) {
 		TesterConfig retVal = new TesterConfig();
+
+		// One cached token shared by every tester page load
+		AccessTokenHolder tokenHolder = new AccessTokenHolder(this::getAccessToken, Duration.ofSeconds(30));
+		Set<FhirContext> configuredContexts = Collections.newSetFromMap(new IdentityHashMap<>());
 		
 		retVal.addServer()
 			.withId("home")
@@ -113,22 +143,17 @@ public class FhirTesterConfig {
 		retVal.setClientFactory(new ITestingUiClientFactory() {
 			@Override
 			public IGenericClient newClient(FhirContext theFhirContext, HttpServletRequest theRequest, String theServerBase) {
-                logger.info("Creating new FHIR client for server: {}", theServerBase);
-                
-				theFhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
-				theFhirContext.getRestfulClientFactory().setSocketTimeout(5 * 60 * 1000);
-				
-				CloseableHttpClient httpClient = HttpClients.custom()
-						.setSSLContext(sslContext)
-						.build();
-				
-				theFhirContext.getRestfulClientFactory().setHttpClient(httpClient);
-				
+                logger.debug("Creating new FHIR client for server: {}", theServerBase);
+
+				synchronized (configuredContexts) {
+					if (configuredContexts.add(theFhirContext)) {
+						theFhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+						theFhirContext.getRestfulClientFactory().setHttpClient(httpClient);
+					}
+				}
+
 				IGenericClient client = theFhirContext.newRestfulGenericClient(theServerBase);
-				
-				String token = getAccessToken();
-                logger.debug("Adding bearer token to request headers");
-				client.registerInterceptor(new BearerTokenAuthInterceptor(token));
+				client.registerInterceptor(new BearerTokenAuthInterceptor(tokenHolder::getAccessToken, tokenHolder::invalidate));
 				
 				return client;
 			}
@@ -0,0 +1,202 @@
+package ca.uhn.fhir.jpa.starter.common.security;
+
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilder;
+import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compiles the roles and scopes carried by a JWT into an immutable HAPI rule list.
+ * <p>
+ * Compiled rule sets are cached by the (roles, scopes, patient) tuple, so tokens with the same grants share
+ * one rule list. By default only the {@value #ALLOW_ALL_ROLE} client role is honoured, which allows everything;
+ * tokens without it get no access. With {@code hapi.fhir.security.smart_scopes.enabled} the following scopes
+ * grant access as well:
+ * <ul>
+ *     <li>SMART style {@code system/Type.read}, {@code user/Type.write} and {@code user/*.*} scopes, which
+ *     allow access to a resource type</li>
+ *     <li>{@code patient/Type.read} scopes, which allow access within the compartment of the token's
+ *     {@code patient} claim</li>
+ * </ul>
+ */
+@Component
+public class AuthorizationRuleCompiler {
+    private static final Logger logger = LoggerFactory.getLogger(AuthorizationRuleCompiler.class);
+    static final String ALLOW_ALL_ROLE = "fhir-api";
+    private static final String CLIENT_ID = "hapi-fhir";
+
+    private final Cache<RuleSetKey, CompiledRuleSet> compiled;
+    private final boolean smartScopesEnabled;
+
+    public AuthorizationRuleCompiler(
+            @Value("${hapi.fhir.security.rule_cache.max_size:1000}") long maxSize,
+            @Value("${hapi.fhir.security.smart_scopes.enabled:false}") boolean smartScopesEnabled) {
+        this.compiled = Caffeine.newBuilder().maximumSize(maxSize).build();
+        this.smartScopesEnabled = smartScopesEnabled;
+    }
+
+    /**
+     * Returns the compiled rule set for the grants in the given token, or an empty rule set if the token
+     * carries no grant this server understands.
+     */
+    public CompiledRuleSet compile(Jwt jwt) {
+        RuleSetKey key = smartScopesEnabled
+            ? new RuleSetKey(extractRoles(jwt), extractScopes(jwt), jwt.getClaimAsString("patient"))
+            : new RuleSetKey(extractRoles(jwt), Collections.emptySet(), null);
+        return compiled.get(key, AuthorizationRuleCompiler::build);
+    }
+
+    private static CompiledRuleSet build(RuleSetKey key) {
+        if (key.roles().contains(ALLOW_ALL_ROLE)) {
+            return new CompiledRuleSet(new RuleBuilder().allowAll().build(), true);
+        }
+
+        IAuthRuleBuilder builder = new RuleBuilder();
+        boolean granted = false;
+        for (String scope : key.scopes()) {
+            SmartScope smartScope = SmartScope.parse(scope);
+            if (smartScope == null) {
+                continue;
+            }
+            if (smartScope.isPatientContext() && key.patientId() == null) {
+                logger.debug("Ignoring scope {} as the token has no patient claim", scope);
+                continue;
+            }
+            if (smartScope.read()) {
+                addReadRule(builder, smartScope, key.patientId());
+                granted = true;
+            }
+            if (smartScope.write()) {
+                addWriteRule(builder, smartScope, key.patientId());
+                granted = true;
+            }
+        }
+
+        if (!granted) {
+            return CompiledRuleSet.EMPTY;
+        }
+        List<IAuthRule> rules = builder
+            .allow().metadata().andThen()
+            .allow().transaction().withAnyOperation().andApplyNormalRules().andThen()
+            .denyAll()
+            .build();
+        return new CompiledRuleSet(rules, false);
+    }
+
+    private static void addReadRule(IAuthRuleBuilder builder, SmartScope scope, String patientId) {
+        var read = builder.allow().read();
+        var target = scope.isAllTypes() ? read.allResources() : read.resourcesOfType(scope.resourceType());
+        if (scope.isPatientContext()) {
+            target.inCompartment("Patient", new IdDt("Patient", patientId)).andThen();
+        } else {
+            target.withAnyId().andThen();
+        }
+    }
+
+    private static void addWriteRule(IAuthRuleBuilder builder, SmartScope scope, String patientId) {
+        var write = builder.allow().write();
+        var target = scope.isAllTypes() ? write.allResources() : write.resourcesOfType(scope.resourceType());
+        if (scope.isPatientContext()) {
+            target.inCompartment("Patient", new IdDt("Patient", patientId)).andThen();
+        } else {
+            target.withAnyId().andThen();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> extractRoles(Jwt jwt) {
+        Map<String, Object> resourceAccess = jwt.getClaim("resource_access");
+        if (resourceAccess == null || !(resourceAccess.get(CLIENT_ID) instanceof Map<?, ?> clientAccess)) {
+            return Collections.emptySet();
+        }
+        Object roles = clientAccess.get("roles");
+        if (!(roles instanceof Collection<?>)) {
+            return Collections.emptySet();
+        }
+        return Set.copyOf((Collection<String>) roles);
+    }
+
+    private static Set<String> extractScopes(Jwt jwt) {
+        String scope = jwt.getClaimAsString("scope");
+        if (scope == null || scope.isBlank()) {
+            return Collections.emptySet();
+        }
+        // Sorted so that rules are always compiled in the same order for the same grants
+        return Collections.unmodifiableSet(new TreeSet<>(List.of(scope.trim().split("\\s+"))));
+    }
+
+    private record RuleSetKey(Set<String> roles, Set<String> scopes, String patientId) {}
+
+    private record SmartScope(String context, String resourceType, boolean read, boolean write) {
+        static SmartScope parse(String theScope) {
+            int slash = theScope.indexOf('/');
+            int dot = theScope.lastIndexOf('.');
+            if (slash <= 0 || dot <= slash + 1 || dot == theScope.length() - 1) {
+                return null;
+            }
+            String context = theScope.substring(0, slash);
+            if (!context.equals("patient") && !context.equals("user") && !context.equals("system")) {
+                return null;
+            }
+            // SMART v1 uses read/write/*, SMART v2 uses any ordered subset of "cruds"
+            String permission = theScope.substring(dot + 1);
+            boolean all = permission.equals("*");
+            boolean v2 = permission.matches("c?r?u?d?s?");
+            boolean read = all || permission.equals("read") || v2 && (permission.contains("r") || permission.contains("s"));
+            boolean write = all || permission.equals("write") || v2 && permission.matches(".*[cud].*");
+            if (!read && !write) {
+                return null;
+            }
+            return new SmartScope(context, theScope.substring(slash + 1, dot), read, write);
+        }
+
+        boolean isPatientContext() {
+            return context.equals("patient");
+        }
+
+        boolean isAllTypes() {
+            return resourceType.equals("*");
+        }
+    }
+
+    /**
+     * An immutable rule list together with whether it grants unrestricted access.
+     */
+    public static class CompiledRuleSet {
+        static final CompiledRuleSet EMPTY = new CompiledRuleSet(Collections.emptyList(), false);
+
+        private final List<IAuthRule> rules;
+        private final boolean allowAll;
+
+        CompiledRuleSet(List<IAuthRule> rules, boolean allowAll) {
+            this.rules = Collections.unmodifiableList(rules);
+            this.allowAll = allowAll;
+        }
+
+        public List<IAuthRule> getRules() {
+            return rules;
+        }
+
+        public boolean isAllowAll() {
+            return allowAll;
+        }
+
+        public boolean isEmpty() {
+            return rules.isEmpty();
+        }
+    }
+}
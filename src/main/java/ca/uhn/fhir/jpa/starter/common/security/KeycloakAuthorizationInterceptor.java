@@ -1,76 +1,95 @@
 package ca.uhn.fhir.jpa.starter.common.security;
 
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.common.security.AuthorizationRuleCompiler.CompiledRuleSet;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
-import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.security.oauth2.jwt.Jwt;
-import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
 import org.springframework.stereotype.Component;
 
 import java.util.List;
-import java.util.Map;
 
 @Component
 public class KeycloakAuthorizationInterceptor extends AuthorizationInterceptor {
     private static final Logger logger = LoggerFactory.getLogger(KeycloakAuthorizationInterceptor.class);
-    private static final String REQUIRED_ROLE = "fhir-api";
     private static final String BEARER_PREFIX = "Bearer ";
-    
-    private final JwtDecoder jwtDecoder;
+    private static final String RULE_SET_KEY = KeycloakAuthorizationInterceptor.class.getName() + "_RULE_SET";
 
-    public KeycloakAuthorizationInterceptor(JwtDecoder jwtDecoder) {
-        this.jwtDecoder = jwtDecoder;
+    private final VerifiedJwtCache verifiedJwtCache;
+    private final AuthorizationRuleCompiler ruleCompiler;
+
+    public KeycloakAuthorizationInterceptor(VerifiedJwtCache verifiedJwtCache, AuthorizationRuleCompiler ruleCompiler) {
+        this.verifiedJwtCache = verifiedJwtCache;
+        this.ruleCompiler = ruleCompiler;
     }
 
     @Override
     public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
+        return getRuleSet(theRequestDetails).getRules();
+    }
+
+    @Override
+    public Verdict applyRulesAndReturnDecision(
+            RestOperationTypeEnum theOperation,
+            RequestDetails theRequestDetails,
+            IBaseResource theInputResource,
+            IIdType theInputResourceId,
+            IBaseResource theOutputResource,
+            Pointcut thePointcut) {
+        // Skip per-resource rule evaluation entirely when the caller may do anything, which
+        // matters for search responses with many entries
+        CompiledRuleSet ruleSet = getRuleSet(theRequestDetails);
+        if (ruleSet.isAllowAll()) {
+            return new Verdict(PolicyEnum.ALLOW, ruleSet.getRules().get(0));
+        }
+        return super.applyRulesAndReturnDecision(
+            theOperation, theRequestDetails, theInputResource, theInputResourceId, theOutputResource, thePointcut);
+    }
+
+    private CompiledRuleSet getRuleSet(RequestDetails theRequestDetails) {
+        CompiledRuleSet ruleSet = (CompiledRuleSet) theRequestDetails.getUserData().get(RULE_SET_KEY);
+        if (ruleSet == null) {
+            ruleSet = resolveRuleSet(theRequestDetails);
+            theRequestDetails.getUserData().put(RULE_SET_KEY, ruleSet);
+        }
+        return ruleSet;
+    }
+
+    private CompiledRuleSet resolveRuleSet(RequestDetails theRequestDetails) {
         String authHeader = theRequestDetails.getHeader("Authorization");
-        
+
         if (authHeader == null || !authHeader.startsWith(BEARER_PREFIX)) {
             logger.warn("Missing or invalid Authorization header");
             throw new AuthenticationException("Missing or invalid Authorization header");
         }
 
         String token = authHeader.substring(BEARER_PREFIX.length());
-        
-        try {
-            Jwt jwt = jwtDecoder.decode(token);
-            if (!hasRequiredRole(jwt)) {
-                logger.warn("Token missing required role: {}", REQUIRED_ROLE);
-                throw new AuthenticationException("Insufficient permissions");
-            }
 
-            // If we get here, allow access to everything
-            return new RuleBuilder()
-                .allowAll()
-                .build();
-                
+        Jwt jwt;
+        try {
+            jwt = verifiedJwtCache.decode(token);
+        } catch (JwtException e) {
+            logger.warn("Error validating token: {}", e.getMessage());
+            throw new AuthenticationException("Invalid token");
         } catch (Exception e) {
             logger.error("Error validating token", e);
             throw new AuthenticationException("Invalid token");
         }
-    }
 
-    private boolean hasRequiredRole(Jwt jwt) {
-        try {
-            Map<String, Object> resourceAccess = jwt.getClaim("resource_access");
-            if (resourceAccess == null) return false;
-
-            @SuppressWarnings("unchecked")
-            Map<String, Object> clientAccess = (Map<String, Object>) resourceAccess.get("hapi-fhir");
-            if (clientAccess == null) return false;
-
-            @SuppressWarnings("unchecked")
-            List<String> roles = (List<String>) clientAccess.get("roles");
-            return roles != null && roles.contains(REQUIRED_ROLE);
-            
-        } catch (Exception e) {
-            logger.error("Error checking roles in token", e);
-            return false;
+        CompiledRuleSet ruleSet = ruleCompiler.compile(jwt);
+        if (ruleSet.isEmpty()) {
+            logger.warn("Token carries neither the {} role nor a usable scope", AuthorizationRuleCompiler.ALLOW_ALL_ROLE);
+            throw new AuthenticationException("Insufficient permissions");
         }
+        return ruleSet;
     }
-} 
+}
@@ -1,19 +1,110 @@
 package ca.uhn.fhir.jpa.starter.common.security;
 
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.jwk.JWKMatcher;
+import com.nimbusds.jose.jwk.JWKSelector;
+import com.nimbusds.jose.jwk.JWKSet;
+import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
+import com.nimbusds.jose.jwk.source.JWKSource;
+import com.nimbusds.jose.jwk.source.JWKSourceBuilder;
+import com.nimbusds.jose.proc.JWSVerificationKeySelector;
+import com.nimbusds.jose.proc.SecurityContext;
+import com.nimbusds.jwt.proc.DefaultJWTProcessor;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
 import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtValidators;
 import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
 
+import java.io.File;
+import java.net.URL;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Set;
+
 @Configuration
 public class SecurityConfig {
-    
+    private static final Logger logger = LoggerFactory.getLogger(SecurityConfig.class);
+
     @Value("${spring.security.oauth2.resourceserver.jwt.jwk-set-uri}")
     private String jwkSetUri;
 
+    /** Local JWKS file used instead of the JWKS endpoint, e.g. for air-gapped testing */
+    @Value("${hapi.fhir.security.jwks.file:}")
+    private String jwkSetFile;
+
+    @Value("${hapi.fhir.security.jwks.cache_ttl_seconds:300}")
+    private long cacheTtlSeconds;
+
+    @Value("${hapi.fhir.security.jwks.refresh_timeout_seconds:15}")
+    private long refreshTimeoutSeconds;
+
+    @Value("${hapi.fhir.security.jwks.refresh_ahead_seconds:30}")
+    private long refreshAheadSeconds;
+
+    @Value("${hapi.fhir.security.jwks.outage_tolerance_seconds:3600}")
+    private long outageToleranceSeconds;
+
+    /** Accepted JWS algorithms; RS256 only unless configured, as with NimbusJwtDecoder.withJwkSetUri() */
+    @Value("${hapi.fhir.security.jwks.algorithms:RS256}")
+    private String[] algorithmNames;
+
     @Bean
-    public JwtDecoder jwtDecoder() {
-        return NimbusJwtDecoder.withJwkSetUri(jwkSetUri).build();
+    public JWKSource<SecurityContext> jwkSource() throws Exception {
+        if (StringUtils.isNotBlank(jwkSetFile)) {
+            logger.info("Loading JWKS from local file: {}", jwkSetFile);
+            return new ImmutableJWKSet<>(JWKSet.load(new File(jwkSetFile)));
+        }
+
+        // Keys are cached, refreshed on a background thread shortly before they expire, and the
+        // last known keys keep being served while the JWKS endpoint is unreachable
+        return JWKSourceBuilder.create(new URL(jwkSetUri))
+            .cache(Duration.ofSeconds(cacheTtlSeconds).toMillis(), Duration.ofSeconds(refreshTimeoutSeconds).toMillis())
+            .refreshAheadCache(Duration.ofSeconds(refreshAheadSeconds).toMillis(), true)
+            .outageTolerant(Duration.ofSeconds(outageToleranceSeconds).toMillis())
+            .build();
+    }
+
+    @Bean
+    public JwtDecoder jwtDecoder(JWKSource<SecurityContext> jwkSource) {
+        Set<JWSAlgorithm> algorithms = new HashSet<>();
+        for (String algorithmName : algorithmNames) {
+            if (StringUtils.isNotBlank(algorithmName)) {
+                algorithms.add(JWSAlgorithm.parse(algorithmName.trim()));
+            }
+        }
+        if (algorithms.isEmpty()) {
+            algorithms.add(JWSAlgorithm.RS256);
+        }
+
+        DefaultJWTProcessor<SecurityContext> jwtProcessor = new DefaultJWTProcessor<>();
+        jwtProcessor.setJWSKeySelector(new JWSVerificationKeySelector<>(algorithms, jwkSource));
+        // Claims are validated by Spring below, as NimbusJwtDecoder.withJwkSetUri() does
+        jwtProcessor.setJWTClaimsSetVerifier((claims, context) -> {});
+
+        NimbusJwtDecoder decoder = new NimbusJwtDecoder(jwtProcessor);
+        decoder.setJwtValidator(JwtValidators.createDefault());
+        return decoder;
+    }
+
+    /**
+     * Fetches the signing keys once the application is up so that the first authenticated request
+     * does not have to wait for the JWKS endpoint.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpJwkSource() {
+        try {
+            // Resolved through the configuration proxy, so this is the singleton bean
+            int keys = jwkSource().get(new JWKSelector(new JWKMatcher.Builder().build()), null).size();
+            logger.info("Pre-fetched {} signing keys", keys);
+        } catch (Exception e) {
+            logger.warn("Unable to pre-fetch signing keys, they will be fetched on first use: {}", e.getMessage());
+        }
     }
-} 
+}
@@ -0,0 +1,140 @@
+package ca.uhn.fhir.jpa.starter.common.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.jwt.BadJwtException;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HexFormat;
+
+/**
+ * Resolves bearer tokens to verified {@link Jwt}s without decoding the same token twice.
+ * <p>
+ * The Authentication placed in the SecurityContext by the resource server filter chain is
+ * reused when it holds the same token. Otherwise verified tokens are kept in a bounded LRU,
+ * keyed by the SHA-256 of the token, until they expire. Tokens that fail validation are
+ * remembered for a short time so that a client retrying with a bad token does not trigger a
+ * signature check on every request. Failures that say nothing about the token itself, such as
+ * the JWK set being unreachable, are not remembered.
+ */
+@Component
+public class VerifiedJwtCache {
+    private static final Logger logger = LoggerFactory.getLogger(VerifiedJwtCache.class);
+
+    private final JwtDecoder jwtDecoder;
+    private final Cache<String, Jwt> verified;
+    private final Cache<String, String> rejected;
+
+    public VerifiedJwtCache(
+            JwtDecoder jwtDecoder,
+            @Value("${hapi.fhir.security.jwt_cache.max_size:10000}") long maxSize,
+            @Value("${hapi.fhir.security.jwt_cache.negative_max_size:1000}") long negativeMaxSize,
+            @Value("${hapi.fhir.security.jwt_cache.negative_ttl_seconds:30}") long negativeTtlSeconds) {
+        this.jwtDecoder = jwtDecoder;
+        this.verified = Caffeine.newBuilder()
+            .maximumSize(maxSize)
+            .expireAfter(new JwtExpiry())
+            .build();
+        this.rejected = Caffeine.newBuilder()
+            .maximumSize(negativeMaxSize)
+            .expireAfterWrite(Duration.ofSeconds(negativeTtlSeconds))
+            .build();
+    }
+
+    /**
+     * Returns the verified JWT for the given raw token, decoding it only if it has not been seen before.
+     *
+     * @throws JwtException if the token is invalid, or was rejected recently
+     */
+    public Jwt decode(String token) {
+        Jwt fromContext = fromSecurityContext(token);
+        if (fromContext != null) {
+            return fromContext;
+        }
+
+        String key = hash(token);
+        Jwt cached = verified.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        String rejection = rejected.getIfPresent(key);
+        if (rejection != null) {
+            throw new JwtException(rejection);
+        }
+
+        try {
+            Jwt jwt = jwtDecoder.decode(token);
+            verified.put(key, jwt);
+            return jwt;
+        } catch (BadJwtException e) {
+            logger.debug("Caching rejection of token: {}", e.getMessage());
+            rejected.put(key, e.getMessage() != null ? e.getMessage() : "Invalid token");
+            throw e;
+        }
+    }
+
+    public void invalidateAll() {
+        verified.invalidateAll();
+        rejected.invalidateAll();
+    }
+
+    private Jwt fromSecurityContext(String token) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if (authentication instanceof JwtAuthenticationToken jwtAuthentication) {
+            Jwt jwt = jwtAuthentication.getToken();
+            if (token.equals(jwt.getTokenValue())) {
+                return jwt;
+            }
+        }
+        return null;
+    }
+
+    private static String hash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Expires each entry at the token's own {@code exp} claim. Tokens without an expiry are not kept.
+     */
+    private static class JwtExpiry implements Expiry<String, Jwt> {
+        @Override
+        public long expireAfterCreate(String key, Jwt jwt, long currentTime) {
+            Instant expiresAt = jwt.getExpiresAt();
+            if (expiresAt == null) {
+                return 0;
+            }
+            return Math.max(0, Duration.between(Instant.now(), expiresAt).toNanos());
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, Jwt jwt, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, jwt, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, Jwt jwt, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package ca.uhn.fhir.jpa.starter.cr;
 public class CareGapsProperties {
 	private String reporter = "default";
 	private String section_author = "default";
+	private Integer chunk_size = 100;
+	private Integer chunks_in_flight = 4;
 
 	public String getReporter() {
 		return reporter;
@@ -19,4 +21,27 @@ public class CareGapsProperties {
 	public void setSection_author(String section_author) {
 		this.section_author = section_author;
 	}
+
+	/**
+	 * Number of subjects evaluated by each parallel task of {@code $care-gaps-stream}.
+	 */
+	public int getChunk_size() {
+		return chunk_size;
+	}
+
+	public void setChunk_size(int chunk_size) {
+		this.chunk_size = chunk_size;
+	}
+
+	/**
+	 * Number of chunks of {@code $care-gaps-stream} being evaluated or waiting to be written at any time, which bounds
+	 * the documents held in memory to {@code chunk_size * chunks_in_flight}.
+	 */
+	public int getChunks_in_flight() {
+		return chunks_in_flight;
+	}
+
+	public void setChunks_in_flight(int chunks_in_flight) {
+		this.chunks_in_flight = chunks_in_flight;
+	}
 }
@@ -0,0 +1,126 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Global ValueSet cache of url to expansion, a plain {@link Map} for the CQL engine and for
+ * {@code CodeCacheResourceChangeListener}.
+ * <p>
+ * With a {@link ValueSetExpansionStore} attached, a miss is answered from the store when it holds an expansion
+ * computed from the current inputs. Otherwise the inputs looked up on the miss are kept for the thread, which is the
+ * one that goes on to expand, and the expansion it puts is persisted with exactly those inputs. Removing an entry
+ * only drops it from memory; the store validates its own entries on load.
+ * <p>
+ * The engine asks {@link #containsKey} and then {@link #get} for the same url, so a miss is looked up once and
+ * reused by the calls that immediately follow it. Pending inputs end with the put of the expansion; those of an
+ * attempt that never put anything are dropped by the thread's next miss once they are older than
+ * {@value #MAX_ATTEMPT_MILLIS} ms.
+ */
+public class CodeSetCache extends AbstractMap<String, List<Code>> {
+	static final long REUSE_LOOKUP_MILLIS = 1000;
+	static final long MAX_ATTEMPT_MILLIS = 10 * 60 * 1000;
+
+	private final Map<String, List<Code>> expansions = new ConcurrentHashMap<>();
+	private final ValueSetExpansionStore expansionStore;
+	// Url -> inputs looked up on this thread's miss, keyed so that nested expansions do not mix them up
+	private final ThreadLocal<Map<String, Pending>> pendingInputs = new ThreadLocal<>();
+
+	public CodeSetCache() {
+		this(null);
+	}
+
+	public CodeSetCache(ValueSetExpansionStore theExpansionStore) {
+		expansionStore = theExpansionStore;
+	}
+
+	public ValueSetExpansionStore getExpansionStore() {
+		return expansionStore;
+	}
+
+	@Override
+	public List<Code> put(String theUrl, List<Code> theCodes) {
+		Map<String, Pending> pending = pendingInputs.get();
+		if (pending != null) {
+			Pending attempt = pending.remove(theUrl);
+			if (attempt != null) {
+				expansionStore.store(theUrl, theCodes, attempt.inputs());
+			}
+			if (pending.isEmpty()) {
+				pendingInputs.remove();
+			}
+		}
+		return expansions.put(theUrl, theCodes);
+	}
+
+	@Override
+	public List<Code> get(Object theUrl) {
+		List<Code> codes = expansions.get(theUrl);
+		if (codes == null && expansionStore != null && theUrl instanceof String url) {
+			codes = lookup(url);
+		}
+		return codes;
+	}
+
+	@Override
+	public boolean containsKey(Object theUrl) {
+		return get(theUrl) != null;
+	}
+
+	/**
+	 * Looks the url up in the store, unless this thread just did so. A current stored expansion is cached, otherwise
+	 * the inputs are kept for the expansion this thread is about to put.
+	 */
+	private List<Code> lookup(String theUrl) {
+		long now = System.currentTimeMillis();
+		Map<String, Pending> pending = pendingInputs.get();
+		if (pending != null) {
+			Pending attempt = pending.get(theUrl);
+			if (attempt != null && now - attempt.startedMillis() < REUSE_LOOKUP_MILLIS) {
+				return null;
+			}
+			pending.values().removeIf(abandoned -> now - abandoned.startedMillis() >= MAX_ATTEMPT_MILLIS);
+		}
+		ValueSetExpansionStore.Lookup lookup = expansionStore.lookup(theUrl);
+		if (lookup.codes() != null) {
+			List<Code> existing = expansions.putIfAbsent(theUrl, lookup.codes());
+			return existing != null ? existing : lookup.codes();
+		}
+		if (lookup.inputs() != null) {
+			if (pending == null) {
+				pending = new HashMap<>();
+				pendingInputs.set(pending);
+			}
+			pending.put(theUrl, new Pending(lookup.inputs(), now));
+		}
+		return null;
+	}
+
+	@Override
+	public List<Code> remove(Object theUrl) {
+		return expansions.remove(theUrl);
+	}
+
+	@Override
+	public void clear() {
+		expansions.clear();
+	}
+
+	@Override
+	public int size() {
+		return expansions.size();
+	}
+
+	@Override
+	public Set<Entry<String, List<Code>>> entrySet() {
+		return expansions.entrySet();
+	}
+
+	private record Pending(ValueSetExpansionStore.Inputs inputs, long startedMillis) {}
+}
@@ -0,0 +1,84 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The resources of a chunk of subjects, loaded one retrieve pattern (resource type and subject search parameter) at
+ * a time for all of them at once, and handed out per subject by {@link CohortRetrieveRepository}.
+ * <p>
+ * A cohort is bound to the thread evaluating its chunk for the duration of {@link #evaluate(Supplier)}, so the
+ * repositories the CR module creates for the evaluations it runs on that thread can find it.
+ */
+public class CohortRetrieveCache {
+
+	private static final ThreadLocal<CohortRetrieveCache> CURRENT = new ThreadLocal<>();
+
+	private final Set<String> subjectIds;
+	// Retrieve pattern -> subject id -> resources, or null when the pattern cannot be served from the cohort
+	private final Map<String, Map<String, List<IBaseResource>>> loaded = new ConcurrentHashMap<>();
+	private final Set<String> uncacheable = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param theSubjectIds the id parts of the Patients in the chunk
+	 */
+	public CohortRetrieveCache(Collection<String> theSubjectIds) {
+		subjectIds = Set.copyOf(theSubjectIds);
+	}
+
+	/**
+	 * The cohort of the chunk being evaluated on this thread, if any.
+	 */
+	public static CohortRetrieveCache current() {
+		return CURRENT.get();
+	}
+
+	public <T> T evaluate(Supplier<T> theEvaluation) {
+		CohortRetrieveCache previous = CURRENT.get();
+		CURRENT.set(this);
+		try {
+			return theEvaluation.get();
+		} finally {
+			if (previous != null) {
+				CURRENT.set(previous);
+			} else {
+				CURRENT.remove();
+			}
+		}
+	}
+
+	public boolean contains(String theSubjectId) {
+		return subjectIds.contains(theSubjectId);
+	}
+
+	/**
+	 * Returns the resources of one subject for a retrieve pattern, loading the pattern for the whole cohort on first
+	 * use. Returns null when the loader could not attribute its results to subjects; the caller then falls back to
+	 * a regular search, as it will for every later use of the pattern.
+	 */
+	public List<IBaseResource> get(
+			String thePattern,
+			String theSubjectId,
+			Function<Set<String>, Map<String, List<IBaseResource>>> theLoader) {
+		if (uncacheable.contains(thePattern)) {
+			return null;
+		}
+		Map<String, List<IBaseResource>> bySubject = loaded.get(thePattern);
+		if (bySubject == null) {
+			bySubject = theLoader.apply(subjectIds);
+			if (bySubject == null) {
+				uncacheable.add(thePattern);
+				return null;
+			}
+			loaded.put(thePattern, bySubject);
+		}
+		return bySubject.getOrDefault(theSubjectId, List.of());
+	}
+}
@@ -0,0 +1,210 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.cr.repo.HapiFhirRepository;
+import ca.uhn.fhir.fhirpath.IFhirPath;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.util.BundleBuilder;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Repository that serves the per-subject retrieves of a CQL evaluation from the {@link CohortRetrieveCache} bound to
+ * the current thread.
+ * <p>
+ * A retrieve is served from the cohort only when it searches on nothing but a single Patient of the cohort, through
+ * {@code _id} on Patient or a reference search parameter such as {@code subject} or {@code patient}. The first such
+ * retrieve for a resource type and parameter loads that type for every subject of the cohort in one search, and
+ * later subjects get their share of it without querying. Everything else, including retrieves that also search on
+ * codes or dates, goes to the database as before. Results are attributed to subjects through the search parameter's
+ * own path, so a subject sees exactly what its own search would have returned. A pattern whose cohort-wide load
+ * would exceed {@value #MAX_LOADED_RESOURCES} resources is not served from the cohort at all, rather than served from
+ * a truncated load.
+ */
+public class CohortRetrieveRepository extends HapiFhirRepository {
+	private static final Logger logger = LoggerFactory.getLogger(CohortRetrieveRepository.class);
+
+	// FHIRPath cannot resolve references here; the bulk search already restricted them to Patients
+	private static final Pattern RESOLVE_FILTER = Pattern.compile("\\.where\\(resolve\\(\\) is [A-Za-z]+\\)");
+
+	// Largest set-based load kept in memory; a pattern matching more is searched per subject instead
+	private static final int MAX_LOADED_RESOURCES = 10_000;
+
+	private final DaoRegistry daoRegistry;
+	private final RequestDetails requestDetails;
+
+	public CohortRetrieveRepository(
+			DaoRegistry theDaoRegistry, RequestDetails theRequestDetails, RestfulServer theRestfulServer) {
+		super(theDaoRegistry, theRequestDetails, theRestfulServer);
+		daoRegistry = theDaoRegistry;
+		requestDetails = theRequestDetails;
+	}
+
+	@Override
+	public <B extends IBaseBundle, T extends IBaseResource> B search(
+			Class<B> theBundleType,
+			Class<T> theResourceType,
+			Map<String, List<IQueryParameterType>> theSearchParameters,
+			Map<String, String> theHeaders) {
+		CohortRetrieveCache cohort = CohortRetrieveCache.current();
+		if (cohort != null && theSearchParameters != null && theSearchParameters.size() == 1) {
+			Map.Entry<String, List<IQueryParameterType>> parameter =
+					theSearchParameters.entrySet().iterator().next();
+			String resourceType = fhirContext().getResourceType(theResourceType);
+			String subjectId = subjectId(resourceType, parameter.getKey(), parameter.getValue());
+			if (subjectId != null && cohort.contains(subjectId)) {
+				List<IBaseResource> resources = cohort.get(
+						resourceType + "?" + parameter.getKey(),
+						subjectId,
+						subjectIds -> load(resourceType, parameter.getKey(), subjectIds));
+				if (resources != null) {
+					return toBundle(resources);
+				}
+			}
+		}
+		return super.search(theBundleType, theResourceType, theSearchParameters, theHeaders);
+	}
+
+	private String subjectId(String theResourceType, String theParameter, List<IQueryParameterType> theValues) {
+		if (theValues == null || theValues.size() != 1 || theValues.get(0).getMissing() != null) {
+			return null;
+		}
+		IQueryParameterType value = theValues.get(0);
+		if ("Patient".equals(theResourceType) && "_id".equals(theParameter) && value instanceof TokenParam token) {
+			return token.getModifier() == null ? idPart(token.getValue()) : null;
+		}
+		if (value instanceof ReferenceParam reference && isReferenceParameter(theResourceType, theParameter)) {
+			if (reference.getChain() != null || !"Patient".equals(reference.getResourceType())) {
+				return null;
+			}
+			return reference.getIdPart();
+		}
+		return null;
+	}
+
+	private boolean isReferenceParameter(String theResourceType, String theParameter) {
+		RuntimeSearchParam searchParam =
+				fhirContext().getResourceDefinition(theResourceType).getSearchParam(theParameter);
+		return searchParam != null && searchParam.getParamType() == RestSearchParameterTypeEnum.REFERENCE;
+	}
+
+	private Map<String, List<IBaseResource>> load(String theResourceType, String theParameter, Set<String> theSubjectIds) {
+		long start = System.currentTimeMillis();
+		// One more than the limit, so that a result that does not fit is told apart from one that just fits
+		SearchParameterMap searchParameterMap = SearchParameterMap.newSynchronous();
+		searchParameterMap.setLoadSynchronousUpTo(MAX_LOADED_RESOURCES + 1);
+		if ("_id".equals(theParameter)) {
+			TokenOrListParam ids = new TokenOrListParam();
+			theSubjectIds.forEach(id -> ids.addOr(new TokenParam(id)));
+			searchParameterMap.add("_id", ids);
+		} else {
+			ReferenceOrListParam references = new ReferenceOrListParam();
+			theSubjectIds.forEach(id -> references.addOr(new ReferenceParam("Patient/" + id)));
+			searchParameterMap.add(theParameter, references);
+		}
+		List<IBaseResource> resources = daoRegistry
+				.getResourceDao(theResourceType)
+				.search(searchParameterMap, requestDetails)
+				.getAllResources();
+		if (resources.size() > MAX_LOADED_RESOURCES) {
+			logger.debug(
+					"More than {} {} resources by {} for {} subjects, not serving them from the cohort",
+					MAX_LOADED_RESOURCES,
+					theResourceType,
+					theParameter,
+					theSubjectIds.size());
+			return null;
+		}
+
+		Map<String, List<IBaseResource>> bySubject = "_id".equals(theParameter)
+				? groupById(resources)
+				: groupByReference(theResourceType, theParameter, theSubjectIds, resources);
+		logger.debug(
+				"Loaded {} {} resources by {} for {} subjects in {} ms",
+				resources.size(),
+				theResourceType,
+				theParameter,
+				theSubjectIds.size(),
+				System.currentTimeMillis() - start);
+		return bySubject;
+	}
+
+	private static Map<String, List<IBaseResource>> groupById(List<IBaseResource> theResources) {
+		Map<String, List<IBaseResource>> bySubject = new HashMap<>();
+		for (IBaseResource resource : theResources) {
+			bySubject.computeIfAbsent(resource.getIdElement().getIdPart(), id -> new ArrayList<>(1)).add(resource);
+		}
+		return bySubject;
+	}
+
+	private Map<String, List<IBaseResource>> groupByReference(
+			String theResourceType, String theParameter, Set<String> theSubjectIds, List<IBaseResource> theResources) {
+		List<String> paths = new ArrayList<>();
+		for (String path : fhirContext().getResourceDefinition(theResourceType).getSearchParam(theParameter).getPathsSplit()) {
+			paths.add(RESOLVE_FILTER.matcher(path).replaceAll(""));
+		}
+		IFhirPath fhirPath = fhirContext().newFhirPath();
+		Map<String, List<IBaseResource>> bySubject = new HashMap<>();
+		for (IBaseResource resource : theResources) {
+			Set<String> owners = new HashSet<>();
+			try {
+				for (String path : paths) {
+					for (IBase value : fhirPath.evaluate(resource, path, IBase.class)) {
+						if (value instanceof IBaseReference reference) {
+							IIdType target = reference.getReferenceElement();
+							if ("Patient".equals(target.getResourceType()) && theSubjectIds.contains(target.getIdPart())) {
+								owners.add(target.getIdPart());
+							}
+						}
+					}
+				}
+			} catch (RuntimeException e) {
+				logger.debug("Unable to evaluate the paths of {}:{}, not serving it from the cohort", theResourceType, theParameter, e);
+				return null;
+			}
+			if (owners.isEmpty()) {
+				// The search matched it through a path that was not understood; rather not guess
+				logger.debug("Unable to attribute {} to a subject, not serving {}:{} from the cohort", resource.getIdElement(), theResourceType, theParameter);
+				return null;
+			}
+			for (String owner : owners) {
+				bySubject.computeIfAbsent(owner, id -> new ArrayList<>()).add(resource);
+			}
+		}
+		return bySubject;
+	}
+
+	@SuppressWarnings("unchecked")
+	private <B extends IBaseBundle> B toBundle(List<IBaseResource> theResources) {
+		BundleBuilder builder = new BundleBuilder(fhirContext());
+		builder.setType("searchset");
+		theResources.forEach(builder::addCollectionEntry);
+		return (B) builder.getBundle();
+	}
+
+	private static String idPart(String theValue) {
+		return theValue != null && theValue.contains("/") ? theValue.substring(theValue.lastIndexOf('/') + 1) : theValue;
+	}
+}
@@ -0,0 +1,147 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded replacement for the unbounded global library cache. Compiled libraries are weighed by the number of
+ * definitions in their ELM and evicted by Caffeine's W-TinyLFU policy once the total weight exceeds the limit.
+ * <p>
+ * It remains a plain {@link Map} to the CQL engine and to {@code ElmCacheResourceChangeListener}, which removes
+ * entries through {@link #remove(Object)} when a Library changes. Hits, misses, evictions and size are published as
+ * {@code cache.*} meters named {@code cql.libraries}. The engine compiles on a miss and then puts the result, so the
+ * time between a miss and the put of the same library on the same thread is recorded as
+ * {@code cql.libraries.load}.
+ * <p>
+ * With an {@link ElmDiskCache} attached, every library compiled from CQL is also written to disk, along with the hash
+ * of the stored Library, and removed from it along with the in-memory entry.
+ */
+public class CompiledLibraryCache extends AbstractMap<VersionedIdentifier, CompiledLibrary> {
+
+	private final Cache<VersionedIdentifier, CompiledLibrary> cache;
+	private final Timer loadTimer;
+	private final ThreadLocal<PendingLoad> pendingLoad = new ThreadLocal<>();
+	private final ElmDiskCache diskCache;
+
+	public CompiledLibraryCache(CqlLibraryCacheProperties theProperties, MeterRegistry theMeterRegistry) {
+		this(theProperties, theMeterRegistry, null);
+	}
+
+	public CompiledLibraryCache(
+			CqlLibraryCacheProperties theProperties, MeterRegistry theMeterRegistry, ElmDiskCache theDiskCache) {
+		diskCache = theDiskCache;
+		cache = Caffeine.newBuilder()
+				.maximumWeight(theProperties.getMaxWeight())
+				.weigher((VersionedIdentifier id, CompiledLibrary library) -> weigh(library))
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(theMeterRegistry, cache, "cql.libraries");
+		loadTimer = Timer.builder("cql.libraries.load")
+				.description("Time to translate a library that was not in the compiled library cache")
+				.register(theMeterRegistry);
+	}
+
+	@Override
+	public CompiledLibrary get(Object theKey) {
+		if (!(theKey instanceof VersionedIdentifier)) {
+			return null;
+		}
+		CompiledLibrary library = cache.getIfPresent((VersionedIdentifier) theKey);
+		if (library == null) {
+			pendingLoad.set(new PendingLoad((VersionedIdentifier) theKey, System.nanoTime()));
+		}
+		return library;
+	}
+
+	@Override
+	public boolean containsKey(Object theKey) {
+		boolean present = cache.asMap().containsKey(theKey);
+		if (!present && theKey instanceof VersionedIdentifier) {
+			pendingLoad.set(new PendingLoad((VersionedIdentifier) theKey, System.nanoTime()));
+		}
+		return present;
+	}
+
+	@Override
+	public CompiledLibrary put(VersionedIdentifier theKey, CompiledLibrary theValue) {
+		PendingLoad load = pendingLoad.get();
+		if (load != null && load.id().equals(theKey)) {
+			loadTimer.record(System.nanoTime() - load.startNanos(), TimeUnit.NANOSECONDS);
+			pendingLoad.remove();
+		}
+		if (diskCache != null) {
+			diskCache.store(theKey, theValue);
+		}
+		return cache.asMap().put(theKey, theValue);
+	}
+
+	@Override
+	public CompiledLibrary remove(Object theKey) {
+		if (diskCache != null && theKey instanceof VersionedIdentifier) {
+			diskCache.remove((VersionedIdentifier) theKey);
+		}
+		return cache.asMap().remove(theKey);
+	}
+
+	public ElmDiskCache getDiskCache() {
+		return diskCache;
+	}
+
+	@Override
+	public void clear() {
+		cache.invalidateAll();
+	}
+
+	@Override
+	public int size() {
+		return cache.asMap().size();
+	}
+
+	@Override
+	public Set<Entry<VersionedIdentifier, CompiledLibrary>> entrySet() {
+		return cache.asMap().entrySet();
+	}
+
+	static int weigh(CompiledLibrary theLibrary) {
+		Library elm = theLibrary.getLibrary();
+		if (elm == null) {
+			return 1;
+		}
+		int weight = 1;
+		if (elm.getStatements() != null) {
+			weight += elm.getStatements().getDef().size();
+		}
+		if (elm.getParameters() != null) {
+			weight += elm.getParameters().getDef().size();
+		}
+		if (elm.getCodeSystems() != null) {
+			weight += elm.getCodeSystems().getDef().size();
+		}
+		if (elm.getValueSets() != null) {
+			weight += elm.getValueSets().getDef().size();
+		}
+		if (elm.getCodes() != null) {
+			weight += elm.getCodes().getDef().size();
+		}
+		if (elm.getConcepts() != null) {
+			weight += elm.getConcepts().getDef().size();
+		}
+		if (elm.getIncludes() != null) {
+			weight += elm.getIncludes().getDef().size();
+		}
+		return weight;
+	}
+
+	private record PendingLoad(VersionedIdentifier id, long startNanos) {}
+}
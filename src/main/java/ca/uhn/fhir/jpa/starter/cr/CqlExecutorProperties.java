@@ -0,0 +1,55 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class CqlExecutorProperties {
+
+	public enum Mode {
+		/** Fixed-size pool with a bounded queue */
+		FIXED,
+		/** Work-stealing {@link java.util.concurrent.ForkJoinPool}, unbounded */
+		WORK_STEALING
+	}
+
+	public enum RejectionPolicy {
+		/** Run the task on the submitting thread, slowing the caller down */
+		CALLER_RUNS,
+		/** Fail the submission */
+		ABORT
+	}
+
+	private Mode mode = Mode.FIXED;
+	private Integer pool_size = Runtime.getRuntime().availableProcessors();
+	private Integer queue_capacity = 1000;
+	private RejectionPolicy rejection_policy = RejectionPolicy.CALLER_RUNS;
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	public int getPoolSize() {
+		return pool_size;
+	}
+
+	public void setPoolSize(int pool_size) {
+		this.pool_size = pool_size;
+	}
+
+	public int getQueueCapacity() {
+		return queue_capacity;
+	}
+
+	public void setQueueCapacity(int queue_capacity) {
+		this.queue_capacity = queue_capacity;
+	}
+
+	public RejectionPolicy getRejectionPolicy() {
+		return rejection_policy;
+	}
+
+	public void setRejectionPolicy(RejectionPolicy rejection_policy) {
+		this.rejection_policy = rejection_policy;
+	}
+}
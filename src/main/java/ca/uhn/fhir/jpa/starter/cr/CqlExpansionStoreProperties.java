@@ -0,0 +1,29 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class CqlExpansionStoreProperties {
+
+	private String disk_directory;
+	private Boolean expand_on_write = true;
+
+	/**
+	 * Directory for the persisted ValueSet expansions; the store is disabled when not set.
+	 */
+	public String getDiskDirectory() {
+		return disk_directory;
+	}
+
+	public void setDiskDirectory(String disk_directory) {
+		this.disk_directory = disk_directory;
+	}
+
+	/**
+	 * Expand ValueSets in the background when they, or the CodeSystems they draw from, are written on this server.
+	 */
+	public boolean isExpandOnWrite() {
+		return expand_on_write;
+	}
+
+	public void setExpandOnWrite(boolean expand_on_write) {
+		this.expand_on_write = expand_on_write;
+	}
+}
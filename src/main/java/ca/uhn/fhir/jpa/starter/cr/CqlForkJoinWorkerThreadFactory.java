@@ -0,0 +1,26 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * The fork-join counterpart of {@link ca.uhn.fhir.cr.common.CqlThreadFactory}: workers run with the application class
+ * loader as their context class loader, so the CQL translator and engine find their model info and service providers
+ * the same way they do on the request threads. The default worker factory inherits the system class loader instead,
+ * which does not see the classes nested in the Spring Boot jar.
+ */
+public class CqlForkJoinWorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+	private final String namePrefix;
+
+	public CqlForkJoinWorkerThreadFactory(String theNamePrefix) {
+		namePrefix = theNamePrefix;
+	}
+
+	@Override
+	public ForkJoinWorkerThread newThread(ForkJoinPool thePool) {
+		ForkJoinWorkerThread thread = new ForkJoinWorkerThread(thePool) {};
+		thread.setName(namePrefix + thread.getPoolIndex());
+		thread.setContextClassLoader(CqlForkJoinWorkerThreadFactory.class.getClassLoader());
+		return thread;
+	}
+}
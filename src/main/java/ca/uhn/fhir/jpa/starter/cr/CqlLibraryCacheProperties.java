@@ -0,0 +1,30 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class CqlLibraryCacheProperties {
+
+	private Long max_weight = 100_000L;
+	private String disk_directory;
+
+	/**
+	 * Upper bound on the total weight of cached compiled libraries, where a library weighs one plus the number of
+	 * definitions (expressions, parameters, codes, value sets, includes, ...) in its ELM.
+	 */
+	public long getMaxWeight() {
+		return max_weight;
+	}
+
+	public void setMaxWeight(long max_weight) {
+		this.max_weight = max_weight;
+	}
+
+	/**
+	 * Directory for the on-disk ELM tier; the tier is disabled when not set.
+	 */
+	public String getDiskDirectory() {
+		return disk_directory;
+	}
+
+	public void setDiskDirectory(String disk_directory) {
+		this.disk_directory = disk_directory;
+	}
+}
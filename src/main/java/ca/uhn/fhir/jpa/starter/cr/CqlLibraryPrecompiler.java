@@ -0,0 +1,247 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.cr.repo.HapiFhirRepository;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.util.FhirTerser;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cql.Engines;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Translates the stored CQL libraries into the global library cache once the application has started, so the first
+ * {@code $evaluate-measure} or {@code $apply} does not pay for translating a library and its include graph.
+ * <p>
+ * Libraries are compiled level by level along their depends-on graph, leaves first, with each level spread over a
+ * fork-join pool; a library therefore finds its includes already compiled. Libraries are told apart by name and
+ * version, so two stored versions of a library are both compiled, each after the versions its canonical depends-on
+ * references name. Readiness is only reported after this listener returns.
+ */
+public class CqlLibraryPrecompiler {
+	private static final Logger logger = LoggerFactory.getLogger(CqlLibraryPrecompiler.class);
+
+	private final CqlPrecompileProperties properties;
+	private final DaoRegistry daoRegistry;
+	private final RestfulServer restfulServer;
+	private final EvaluationSettings evaluationSettings;
+
+	public CqlLibraryPrecompiler(
+			CqlPrecompileProperties theProperties,
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			EvaluationSettings theEvaluationSettings) {
+		properties = theProperties;
+		daoRegistry = theDaoRegistry;
+		restfulServer = theRestfulServer;
+		evaluationSettings = theEvaluationSettings;
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	public void precompile() {
+		if (!properties.isEnabled() || !daoRegistry.isResourceTypeSupported("Library")) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		Map<String, LibraryNode> libraries = loadCqlLibraries(new SystemRequestDetails());
+		Map<Integer, List<LibraryNode>> levels = levels(libraries, selectRoots(libraries));
+
+		AtomicInteger compiled = new AtomicInteger();
+		AtomicInteger failed = new AtomicInteger();
+		ForkJoinPool pool = new ForkJoinPool(
+				Math.max(1, properties.getParallelism()), new CqlForkJoinWorkerThreadFactory("cql-precompile-"), null, false);
+		try {
+			for (List<LibraryNode> level : levels.values()) {
+				List<Callable<Void>> tasks = new ArrayList<>();
+				for (LibraryNode library : level) {
+					tasks.add(() -> {
+						compile(library, compiled, failed);
+						return null;
+					});
+				}
+				pool.invokeAll(tasks);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		logger.info(
+				"Precompiled {} CQL libraries in {} levels in {} ms ({} failed)",
+				compiled.get(),
+				levels.size(),
+				System.currentTimeMillis() - start,
+				failed.get());
+	}
+
+	private void compile(LibraryNode theLibrary, AtomicInteger theCompiled, AtomicInteger theFailed) {
+		try {
+			// Request details carry per-request state, so every task gets its own
+			Repository repository = new HapiFhirRepository(daoRegistry, new SystemRequestDetails(), restfulServer);
+			// Each engine gets its own LibraryManager, all of them backed by the shared global library cache
+			Engines.forRepository(repository, evaluationSettings)
+					.getEnvironment()
+					.getLibraryManager()
+					.resolveLibrary(new VersionedIdentifier().withId(theLibrary.name()).withVersion(theLibrary.version()));
+			theCompiled.incrementAndGet();
+		} catch (RuntimeException e) {
+			theFailed.incrementAndGet();
+			logger.warn("Unable to precompile CQL library {}: {}", key(theLibrary.name(), theLibrary.version()), e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the stored CQL libraries keyed by {@code name|version} (or just the name for unversioned ones), with
+	 * their dependencies resolved to the keys of the stored libraries they reference.
+	 */
+	private Map<String, LibraryNode> loadCqlLibraries(SystemRequestDetails theRequestDetails) {
+		FhirContext fhirContext = daoRegistry.getSystemDao().getContext();
+		FhirTerser terser = fhirContext.newTerser();
+		Map<String, String> versions = new HashMap<>();
+		Map<String, List<String>> references = new HashMap<>();
+		List<IBaseResource> resources = daoRegistry
+				.getResourceDao("Library")
+				.search(SearchParameterMap.newSynchronous(), theRequestDetails)
+				.getAllResources();
+		for (IBaseResource resource : resources) {
+			String name = terser.getSinglePrimitiveValueOrNull(resource, "name");
+			if (name == null || !hasCql(terser, resource)) {
+				continue;
+			}
+			String version = terser.getSinglePrimitiveValueOrNull(resource, "version");
+			String key = key(name, version);
+			List<String> dependencies = new ArrayList<>();
+			for (IBase artifact : terser.getValues(resource, "relatedArtifact")) {
+				if (!"depends-on".equals(terser.getSinglePrimitiveValueOrNull(artifact, "type"))) {
+					continue;
+				}
+				String reference = dependencyReference(fhirContext, terser, artifact);
+				if (reference != null && reference.contains("Library/")) {
+					dependencies.add(StringUtils.substringAfterLast(reference, "Library/"));
+				}
+			}
+			versions.put(key, version);
+			references.put(key, dependencies);
+		}
+
+		Map<String, List<String>> keysByName = new HashMap<>();
+		versions.keySet().forEach(key -> keysByName
+				.computeIfAbsent(StringUtils.substringBefore(key, "|"), name -> new ArrayList<>())
+				.add(key));
+		Map<String, LibraryNode> libraries = new HashMap<>();
+		references.forEach((key, dependencies) -> {
+			Set<String> resolved = new HashSet<>();
+			for (String dependency : dependencies) {
+				String name = StringUtils.substringBefore(dependency, "|");
+				String version = StringUtils.substringAfter(dependency, "|");
+				if (!version.isEmpty()) {
+					resolved.add(key(name, version));
+				} else {
+					// Without a version any stored version may be the one included, so all of them go first
+					resolved.addAll(keysByName.getOrDefault(name, List.of()));
+				}
+			}
+			libraries.put(key, new LibraryNode(StringUtils.substringBefore(key, "|"), versions.get(key), resolved));
+		});
+		return libraries;
+	}
+
+	private static String key(String theName, String theVersion) {
+		return theVersion != null ? theName + "|" + theVersion : theName;
+	}
+
+	private static boolean hasCql(FhirTerser theTerser, IBaseResource theLibrary) {
+		for (IBase attachment : theTerser.getValues(theLibrary, "content")) {
+			if ("text/cql".equals(theTerser.getSinglePrimitiveValueOrNull(attachment, "contentType"))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String dependencyReference(FhirContext theFhirContext, FhirTerser theTerser, IBase theArtifact) {
+		// A canonical from R4 on, a Reference in DSTU3
+		return theFhirContext.getVersion().getVersion().isOlderThan(FhirVersionEnum.R4)
+				? theTerser.getSinglePrimitiveValueOrNull(theArtifact, "resource.reference")
+				: theTerser.getSinglePrimitiveValueOrNull(theArtifact, "resource");
+	}
+
+	private Set<String> selectRoots(Map<String, LibraryNode> theLibraries) {
+		if (properties.getLibraries().isEmpty()) {
+			return theLibraries.keySet();
+		}
+		// Configured by name, which selects every stored version, or by name|version
+		Set<String> roots = new HashSet<>();
+		theLibraries.forEach((key, library) -> {
+			if (properties.getLibraries().contains(key) || properties.getLibraries().contains(library.name())) {
+				roots.add(key);
+			}
+		});
+		return roots;
+	}
+
+	/**
+	 * Groups the roots and everything they depend on by the length of their longest dependency chain, leaves at
+	 * level 0. Dependencies that are not stored Libraries (e.g. FHIRHelpers from the classpath) are left to the
+	 * translator.
+	 */
+	private static Map<Integer, List<LibraryNode>> levels(Map<String, LibraryNode> theLibraries, Set<String> theRoots) {
+		Map<String, Integer> depths = new HashMap<>();
+		for (String root : theRoots) {
+			depth(root, theLibraries, depths, new ArrayDeque<>());
+		}
+		Map<Integer, List<LibraryNode>> levels = new TreeMap<>();
+		depths.forEach((key, depth) ->
+				levels.computeIfAbsent(depth, d -> new ArrayList<>()).add(theLibraries.get(key)));
+		return levels;
+	}
+
+	private static int depth(
+			String theKey, Map<String, LibraryNode> theLibraries, Map<String, Integer> theDepths, Deque<String> thePath) {
+		Integer known = theDepths.get(theKey);
+		if (known != null) {
+			return known;
+		}
+		if (thePath.contains(theKey)) {
+			logger.warn("Circular CQL library dependency through {}", theKey);
+			return 0;
+		}
+		thePath.push(theKey);
+		int depth = 0;
+		for (String dependency : theLibraries.get(theKey).dependencies()) {
+			if (theLibraries.containsKey(dependency)) {
+				depth = Math.max(depth, depth(dependency, theLibraries, theDepths, thePath) + 1);
+			}
+		}
+		thePath.pop();
+		theDepths.put(theKey, depth);
+		return depth;
+	}
+
+	/**
+	 * A stored library and the keys of the stored libraries it depends on.
+	 */
+	private record LibraryNode(String name, String version, Set<String> dependencies) {}
+}
@@ -0,0 +1,39 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class CqlPrecompileProperties {
+
+	private Boolean enabled = false;
+	private List<String> libraries = new ArrayList<>();
+	private Integer parallelism = Runtime.getRuntime().availableProcessors();
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Names of the libraries to compile, or {@code name|version} for a single version, together with everything they
+	 * include; all libraries when empty.
+	 */
+	public List<String> getLibraries() {
+		return libraries;
+	}
+
+	public void setLibraries(List<String> libraries) {
+		this.libraries = libraries;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+}
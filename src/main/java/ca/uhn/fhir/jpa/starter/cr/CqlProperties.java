@@ -10,6 +10,9 @@ public class CqlProperties {
 	private CqlRuntimeProperties runtime = new CqlRuntimeProperties();
 	private TerminologySettings terminology = new TerminologySettings();
 	private RetrieveSettings data = new RetrieveSettings();
+	private CqlLibraryCacheProperties library_cache = new CqlLibraryCacheProperties();
+	private CqlPrecompileProperties precompile = new CqlPrecompileProperties();
+	private CqlExpansionStoreProperties expansion_store = new CqlExpansionStoreProperties();
 
 	public Boolean getUse_embedded_libraries() {
 		return use_embedded_libraries;
@@ -50,4 +53,28 @@ public class CqlProperties {
 	public void setData(RetrieveSettings data) {
 		this.data = data;
 	}
+
+	public CqlLibraryCacheProperties getLibraryCache() {
+		return library_cache;
+	}
+
+	public void setLibraryCache(CqlLibraryCacheProperties library_cache) {
+		this.library_cache = library_cache;
+	}
+
+	public CqlPrecompileProperties getPrecompile() {
+		return precompile;
+	}
+
+	public void setPrecompile(CqlPrecompileProperties precompile) {
+		this.precompile = precompile;
+	}
+
+	public CqlExpansionStoreProperties getExpansionStore() {
+		return expansion_store;
+	}
+
+	public void setExpansionStore(CqlExpansionStoreProperties expansion_store) {
+		this.expansion_store = expansion_store;
+	}
 }
@@ -14,6 +14,11 @@ public class CqlRuntimeProperties {
 		this.debug_logging_enabled = debug_logging_enabled;
 	}
 
+	/**
+	 * Lets the CQL engine reuse expression results within one evaluation. The engine keeps these results in its own
+	 * state and drops them whenever the context (e.g. the Patient) changes, so nothing is shared across subjects,
+	 * requests or threads.
+	 */
 	public boolean isEnableExpressionCaching() {
 		return enable_expression_caching;
 	}
@@ -0,0 +1,148 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.util.FhirTerser;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.Library;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evicts compiled libraries and ValueSet expansions from the CR caches as soon as a Library or ValueSet is written
+ * on this server, instead of waiting for the resource change listeners to poll for it.
+ * <p>
+ * A changed Library evicts every cached version of it and, transitively, every cached library that includes it, as
+ * their compiled form was resolved against the old one. Evictions happen after the transaction commits so a
+ * concurrent evaluation cannot cache the old content again. Writes made on other nodes are still picked up by the
+ * (now infrequent) polling listeners.
+ */
+@Interceptor
+public class CrCacheInvalidationInterceptor {
+	private static final Logger logger = LoggerFactory.getLogger(CrCacheInvalidationInterceptor.class);
+
+	private final FhirContext fhirContext;
+	private final Map<VersionedIdentifier, CompiledLibrary> libraryCache;
+	private final Map<String, List<Code>> valueSetCache;
+
+	public CrCacheInvalidationInterceptor(
+			FhirContext theFhirContext,
+			Map<VersionedIdentifier, CompiledLibrary> theLibraryCache,
+			Map<String, List<Code>> theValueSetCache) {
+		fhirContext = theFhirContext;
+		libraryCache = theLibraryCache;
+		valueSetCache = theValueSetCache;
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		resourceChanged(theOldResource);
+		resourceChanged(theNewResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+	public void resourceDeleted(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	private void resourceChanged(IBaseResource theResource) {
+		if (theResource == null) {
+			return;
+		}
+		FhirTerser terser = fhirContext.newTerser();
+		switch (fhirContext.getResourceType(theResource)) {
+			case "Library" -> {
+				String name = terser.getSinglePrimitiveValueOrNull(theResource, "name");
+				if (name != null) {
+					afterCommit(() -> evictLibrary(name));
+				}
+			}
+			case "ValueSet" -> {
+				String url = terser.getSinglePrimitiveValueOrNull(theResource, "url");
+				String version = terser.getSinglePrimitiveValueOrNull(theResource, "version");
+				if (url != null) {
+					afterCommit(() -> {
+						valueSetCache.remove(url);
+						if (version != null) {
+							valueSetCache.remove(url + "|" + version);
+						}
+					});
+				}
+			}
+			default -> {
+				// Not cached by CR
+			}
+		}
+	}
+
+	private void evictLibrary(String theName) {
+		Set<String> evicted = new HashSet<>();
+		Deque<String> pending = new ArrayDeque<>();
+		pending.push(theName);
+		while (!pending.isEmpty()) {
+			String name = pending.pop();
+			if (!evicted.add(name)) {
+				continue;
+			}
+			List<VersionedIdentifier> versions = new ArrayList<>();
+			for (Map.Entry<VersionedIdentifier, CompiledLibrary> entry : libraryCache.entrySet()) {
+				if (name.equals(entry.getKey().getId())) {
+					versions.add(entry.getKey());
+				} else if (includes(entry.getValue().getLibrary(), name)) {
+					pending.push(entry.getKey().getId());
+				}
+			}
+			// Through remove() so that further tiers of the cache are cleared as well
+			versions.forEach(libraryCache::remove);
+		}
+		logger.debug("Evicted compiled libraries {} after a change to {}", evicted, theName);
+	}
+
+	private static boolean includes(Library theLibrary, String theName) {
+		if (theLibrary == null || theLibrary.getIncludes() == null) {
+			return false;
+		}
+		for (IncludeDef include : theLibrary.getIncludes().getDef()) {
+			String path = include.getPath();
+			// Namespaced includes are written as namespace.Name
+			if (path != null && (path.equals(theName) || path.endsWith("." + theName))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void afterCommit(Runnable theAction) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					theAction.run();
+				}
+			});
+		} else {
+			theAction.run();
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class CrCacheInvalidationProperties {
+
+	private Boolean push_enabled = true;
+	private Long polling_interval_ms = 60_000L;
+
+	/**
+	 * Evict cache entries when Libraries and ValueSets are written on this server.
+	 */
+	public boolean isPushEnabled() {
+		return push_enabled;
+	}
+
+	public void setPushEnabled(boolean push_enabled) {
+		this.push_enabled = push_enabled;
+	}
+
+	/**
+	 * How often the resource change listeners poll for changes made elsewhere. Only used when push invalidation is
+	 * enabled; without it they keep polling every second.
+	 */
+	public long getPollingIntervalMs() {
+		return polling_interval_ms;
+	}
+
+	public void setPollingIntervalMs(long polling_interval_ms) {
+		this.polling_interval_ms = polling_interval_ms;
+	}
+}
@@ -1,15 +1,23 @@
 package ca.uhn.fhir.jpa.starter.cr;
 
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.cr.common.CodeCacheResourceChangeListener;
 import ca.uhn.fhir.cr.common.CqlThreadFactory;
 import ca.uhn.fhir.cr.common.ElmCacheResourceChangeListener;
+import ca.uhn.fhir.cr.common.IRepositoryFactory;
+import ca.uhn.fhir.cr.repo.HapiFhirRepository;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.cache.IResourceChangeListenerRegistry;
 import ca.uhn.fhir.jpa.cache.ResourceChangeListenerRegistryInterceptor;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import org.cqframework.cql.cql2elm.CqlCompilerOptions;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
 import org.cqframework.cql.cql2elm.model.CompiledLibrary;
 import org.cqframework.cql.cql2elm.model.Model;
 import org.hl7.cql.model.ModelIdentifier;
@@ -22,6 +30,7 @@ import org.opencds.cqf.fhir.cql.engine.terminology.TerminologySettings;
 import org.opencds.cqf.fhir.cr.measure.CareGapsProperties;
 import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
 import org.opencds.cqf.fhir.utility.ValidationProfile;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
@@ -29,13 +38,19 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.security.concurrent.DelegatingSecurityContextExecutorService;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
 @Conditional({CrConfigCondition.class})
@@ -136,6 +151,17 @@ public class CrCommonConfig {
 
 		cqlOptions.setCqlCompilerOptions(cqlCompilerOptions);
 		evaluationSettings.setLibraryCache(theGlobalLibraryCache);
+		if (theGlobalLibraryCache instanceof CompiledLibraryCache compiledLibraryCache
+				&& compiledLibraryCache.getDiskCache() != null) {
+			// On an in-memory miss the translator asks its source providers for ELM before translating CQL; the disk
+			// cache only serves ELM, so the CQL still comes from the request's own providers
+			List<LibrarySourceProvider> librarySourceProviders = new ArrayList<>();
+			librarySourceProviders.add(compiledLibraryCache.getDiskCache());
+			if (evaluationSettings.getLibrarySourceProviders() != null) {
+				librarySourceProviders.addAll(evaluationSettings.getLibrarySourceProviders());
+			}
+			evaluationSettings.setLibrarySourceProviders(librarySourceProviders);
+		}
 		evaluationSettings.setModelCache(theGlobalModelCache);
 		evaluationSettings.setValueSetCache(theGlobalValueSetCache);
 		evaluationSettings.setRetrieveSettings(theRetrieveSettings);
@@ -145,9 +171,30 @@ public class CrCommonConfig {
 
 	@Primary
 	@Bean
-	public ExecutorService cqlExecutor() {
-		CqlThreadFactory factory = new CqlThreadFactory();
-		ExecutorService executor = Executors.newFixedThreadPool(2, factory);
+	public ExecutorService cqlExecutor(CrProperties theCrProperties, MeterRegistry theMeterRegistry) {
+		CqlExecutorProperties executorProperties = theCrProperties.getExecutor();
+		int poolSize = Math.max(1, executorProperties.getPoolSize());
+		ExecutorService executor;
+		if (executorProperties.getMode() == CqlExecutorProperties.Mode.WORK_STEALING) {
+			// The same pool Executors.newWorkStealingPool builds, with workers on the application class loader like
+			// CqlThreadFactory's; it has no bounded queue or rejection policy
+			executor = new ForkJoinPool(poolSize, new CqlForkJoinWorkerThreadFactory("cql-"), null, true);
+		} else {
+			RejectedExecutionHandler rejectionHandler =
+					executorProperties.getRejectionPolicy() == CqlExecutorProperties.RejectionPolicy.ABORT
+							? new ThreadPoolExecutor.AbortPolicy()
+							: new ThreadPoolExecutor.CallerRunsPolicy();
+			executor = new ThreadPoolExecutor(
+					poolSize,
+					poolSize,
+					0L,
+					TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<>(Math.max(1, executorProperties.getQueueCapacity())),
+					new CqlThreadFactory(),
+					rejectionHandler);
+		}
+		// Exports executor.active, executor.queued, executor.pool.size and friends, tagged name=cql
+		new ExecutorServiceMetrics(executor, "cql", Tags.empty()).bindTo(theMeterRegistry);
 		executor = new DelegatingSecurityContextExecutorService(executor);
 
 		return executor;
@@ -182,9 +229,33 @@ public class CrCommonConfig {
 		return new PostInitProviderRegisterer(theRestfulServer, theResourceProviderFactory);
 	}
 
+	@Primary
 	@Bean
-	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache() {
-		return new ConcurrentHashMap<>();
+	IRepositoryFactory cohortRepositoryFactory(DaoRegistry theDaoRegistry, RestfulServer theRestfulServer) {
+		// Evaluations run for a chunk of a population evaluation serve their retrieves from the chunk's cohort
+		return rd -> CohortRetrieveCache.current() != null
+				? new CohortRetrieveRepository(theDaoRegistry, rd, theRestfulServer)
+				: new HapiFhirRepository(theDaoRegistry, rd, theRestfulServer);
+	}
+
+	@Bean
+	public CqlLibraryPrecompiler cqlLibraryPrecompiler(
+			CrProperties theCrProperties,
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			EvaluationSettings theEvaluationSettings) {
+		return new CqlLibraryPrecompiler(
+				theCrProperties.getCql().getPrecompile(), theDaoRegistry, theRestfulServer, theEvaluationSettings);
+	}
+
+	@Bean
+	public Map<VersionedIdentifier, CompiledLibrary> globalLibraryCache(
+			CrProperties theCrProperties, MeterRegistry theMeterRegistry, DaoRegistry theDaoRegistry) {
+		CqlLibraryCacheProperties libraryCacheProperties = theCrProperties.getCql().getLibraryCache();
+		ElmDiskCache diskCache = libraryCacheProperties.getDiskDirectory() != null
+				? new ElmDiskCache(Path.of(libraryCacheProperties.getDiskDirectory()), theDaoRegistry)
+				: null;
+		return new CompiledLibraryCache(libraryCacheProperties, theMeterRegistry, diskCache);
 	}
 
 	@Bean
@@ -193,19 +264,63 @@ public class CrCommonConfig {
 	}
 
 	@Bean
-	public Map<String, List<Code>> globalValueSetCache() {
-		return new ConcurrentHashMap<>();
+	public Map<String, List<Code>> globalValueSetCache(CrProperties theCrProperties, DaoRegistry theDaoRegistry) {
+		CqlExpansionStoreProperties expansionStoreProperties = theCrProperties.getCql().getExpansionStore();
+		ValueSetExpansionStore expansionStore = expansionStoreProperties.getDiskDirectory() != null
+				? new ValueSetExpansionStore(Path.of(expansionStoreProperties.getDiskDirectory()), theDaoRegistry)
+				: null;
+		return new CodeSetCache(expansionStore);
+	}
+
+	@Bean
+	@ConditionalOnProperty(prefix = "hapi.fhir.cr.cql.expansion_store", name = "disk_directory")
+	public ValueSetExpansionRefresher valueSetExpansionRefresher(
+			CrProperties theCrProperties,
+			FhirContext theFhirContext,
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			EvaluationSettings theEvaluationSettings,
+			IInterceptorService theInterceptorService) {
+		if (!(theEvaluationSettings.getValueSetCache() instanceof CodeSetCache codeSetCache)
+				|| codeSetCache.getExpansionStore() == null) {
+			throw new IllegalStateException("The ValueSet expansion store is configured but not attached to the ValueSet cache");
+		}
+		ValueSetExpansionRefresher refresher = new ValueSetExpansionRefresher(
+				theFhirContext,
+				theDaoRegistry,
+				theRestfulServer,
+				theEvaluationSettings,
+				codeSetCache.getExpansionStore());
+		if (theCrProperties.getCql().getExpansionStore().isExpandOnWrite()) {
+			theInterceptorService.registerInterceptor(refresher);
+		}
+		return refresher;
+	}
+
+	@Bean
+	public CrCacheInvalidationInterceptor crCacheInvalidationInterceptor(
+			CrProperties theCrProperties,
+			FhirContext theFhirContext,
+			EvaluationSettings theEvaluationSettings,
+			IInterceptorService theInterceptorService) {
+		CrCacheInvalidationInterceptor interceptor = new CrCacheInvalidationInterceptor(
+				theFhirContext, theEvaluationSettings.getLibraryCache(), theEvaluationSettings.getValueSetCache());
+		if (theCrProperties.getCacheInvalidation().isPushEnabled()) {
+			theInterceptorService.registerInterceptor(interceptor);
+		}
+		return interceptor;
 	}
 
 	@Bean
 	public ElmCacheResourceChangeListener elmCacheResourceChangeListener(
 			IResourceChangeListenerRegistry theResourceChangeListenerRegistry,
 			DaoRegistry theDaoRegistry,
-			EvaluationSettings theEvaluationSettings) {
+			EvaluationSettings theEvaluationSettings,
+			CrProperties theCrProperties) {
 		ElmCacheResourceChangeListener listener =
 				new ElmCacheResourceChangeListener(theDaoRegistry, theEvaluationSettings.getLibraryCache());
 		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
-				"Library", SearchParameterMap.newSynchronous(), listener, 1000);
+				"Library", SearchParameterMap.newSynchronous(), listener, pollingIntervalMs(theCrProperties));
 		return listener;
 	}
 
@@ -213,17 +328,27 @@ public class CrCommonConfig {
 	public CodeCacheResourceChangeListener codeCacheResourceChangeListener(
 			IResourceChangeListenerRegistry theResourceChangeListenerRegistry,
 			EvaluationSettings theEvaluationSettings,
-			DaoRegistry theDaoRegistry) {
+			DaoRegistry theDaoRegistry,
+			CrProperties theCrProperties) {
 
 		CodeCacheResourceChangeListener listener =
 				new CodeCacheResourceChangeListener(theDaoRegistry, theEvaluationSettings.getValueSetCache());
 		// registry
 		theResourceChangeListenerRegistry.registerResourceResourceChangeListener(
-				"ValueSet", SearchParameterMap.newSynchronous(), listener, 1000);
+				"ValueSet", SearchParameterMap.newSynchronous(), listener, pollingIntervalMs(theCrProperties));
 
 		return listener;
 	}
 
+	/**
+	 * With push invalidation local writes are evicted immediately, so polling only has to catch writes made on
+	 * other nodes.
+	 */
+	private static long pollingIntervalMs(CrProperties theCrProperties) {
+		CrCacheInvalidationProperties cacheInvalidation = theCrProperties.getCacheInvalidation();
+		return cacheInvalidation.isPushEnabled() ? cacheInvalidation.getPollingIntervalMs() : 1000;
+	}
+
 	@Bean
 	public ResourceChangeListenerRegistryInterceptor resourceChangeListenerRegistryInterceptor() {
 		return new ResourceChangeListenerRegistryInterceptor();
@@ -5,6 +5,9 @@ public class CrProperties {
 
 	private CareGapsProperties careGaps = new CareGapsProperties();
 	private CqlProperties cql = new CqlProperties();
+	private CqlExecutorProperties executor = new CqlExecutorProperties();
+	private CrCacheInvalidationProperties cache_invalidation = new CrCacheInvalidationProperties();
+	private MeasureEvaluationProperties measure_evaluation = new MeasureEvaluationProperties();
 
 	public Boolean getEnabled() {
 		return enabled;
@@ -29,4 +32,28 @@ public class CrProperties {
 	public void setCql(CqlProperties cql) {
 		this.cql = cql;
 	}
+
+	public CqlExecutorProperties getExecutor() {
+		return executor;
+	}
+
+	public void setExecutor(CqlExecutorProperties executor) {
+		this.executor = executor;
+	}
+
+	public CrCacheInvalidationProperties getCacheInvalidation() {
+		return cache_invalidation;
+	}
+
+	public void setCacheInvalidation(CrCacheInvalidationProperties cache_invalidation) {
+		this.cache_invalidation = cache_invalidation;
+	}
+
+	public MeasureEvaluationProperties getMeasureEvaluation() {
+		return measure_evaluation;
+	}
+
+	public void setMeasureEvaluation(MeasureEvaluationProperties measure_evaluation) {
+		this.measure_evaluation = measure_evaluation;
+	}
 }
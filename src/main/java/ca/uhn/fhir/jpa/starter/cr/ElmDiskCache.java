@@ -0,0 +1,215 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.cqframework.cql.cql2elm.LibraryContentType;
+import org.cqframework.cql.cql2elm.LibrarySourceProvider;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.cqframework.cql.elm.serializing.ElmLibraryWriterFactory;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Second tier behind the compiled library cache: keeps the ELM of every compiled library on local disk, so a
+ * restarted server loads ELM instead of translating CQL again.
+ * <p>
+ * Each file is keyed by library name and version and records a hash of the Library resource's content. On load
+ * the hash is checked against the Library currently stored, and the translator applies its own ELM compatibility
+ * checks, so a stale or incompatible file is never used. The ELM is handed back to the translator as a
+ * {@link LibrarySourceProvider}, which is how it rebuilds a {@link CompiledLibrary} (with function signatures)
+ * from ELM.
+ * <p>
+ * Only ELM is served from here; CQL is left to the source providers of the request's repository, so libraries
+ * supplied with the request still take precedence. A library this cache had no ELM for is written once it has been
+ * compiled, with the hash of the Library as stored at that point. Should the Library have been removed from the
+ * cache since the ELM lookup, the compiled result may predate the change and is not written.
+ */
+public class ElmDiskCache implements LibrarySourceProvider {
+	private static final Logger logger = LoggerFactory.getLogger(ElmDiskCache.class);
+
+	private final Path directory;
+	private final DaoRegistry daoRegistry;
+	private final FhirContext fhirContext;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ExecutorService writer;
+	// Library name|version -> removals seen so far, and the removal count at the earliest ELM miss not yet written
+	private final Map<String, Long> removals = new ConcurrentHashMap<>();
+	private final Map<String, Long> misses = new ConcurrentHashMap<>();
+
+	public ElmDiskCache(Path theDirectory, DaoRegistry theDaoRegistry) {
+		directory = theDirectory;
+		daoRegistry = theDaoRegistry;
+		fhirContext = theDaoRegistry.getSystemDao().getContext();
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("elm-disk-cache-");
+		// A write lost at shutdown only costs one translation after the restart
+		threadFactory.setDaemon(true);
+		writer = Executors.newSingleThreadExecutor(threadFactory);
+	}
+
+	/**
+	 * Serves no CQL; the translator gets it from the request's own source providers.
+	 */
+	@Override
+	public InputStream getLibrarySource(VersionedIdentifier theLibraryIdentifier) {
+		return null;
+	}
+
+	@Override
+	public InputStream getLibraryContent(VersionedIdentifier theLibraryIdentifier, LibraryContentType theType) {
+		if (theType != LibraryContentType.JSON) {
+			return null;
+		}
+		Path file = fileFor(theLibraryIdentifier);
+		if (!Files.isRegularFile(file)) {
+			recordMiss(theLibraryIdentifier);
+			return null;
+		}
+		try {
+			StoredElm stored = objectMapper.readValue(file.toFile(), StoredElm.class);
+			IBaseResource library = findLibrary(theLibraryIdentifier);
+			String contentHash = library != null ? contentHash(library) : null;
+			if (contentHash == null || !contentHash.equals(stored.contentHash())) {
+				logger.debug("Discarding stale ELM for {}", theLibraryIdentifier.getId());
+				Files.deleteIfExists(file);
+				recordMiss(theLibraryIdentifier);
+				return null;
+			}
+			return new ByteArrayInputStream(stored.elm().getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			logger.warn("Discarding unreadable ELM cache file {}: {}", file, e.getMessage());
+			delete(file);
+			recordMiss(theLibraryIdentifier);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the ELM of a newly compiled library in the background. Nothing is written for libraries that were not
+	 * missing here (e.g. loaded from disk), that are not stored as a single Library (e.g. the embedded FHIRHelpers),
+	 * or that were removed since they were found missing.
+	 */
+	public void store(VersionedIdentifier theLibraryIdentifier, CompiledLibrary theLibrary) {
+		String key = key(theLibraryIdentifier);
+		Long missedAt = misses.remove(key);
+		if (theLibrary.getLibrary() == null
+				|| missedAt == null
+				|| !missedAt.equals(removals.getOrDefault(key, 0L))) {
+			return;
+		}
+		writer.execute(() -> {
+			Path file = fileFor(theLibraryIdentifier);
+			try {
+				IBaseResource library = findLibrary(theLibraryIdentifier);
+				if (library == null) {
+					return;
+				}
+				String contentHash = contentHash(library);
+				if (Files.isRegularFile(file)
+						&& contentHash.equals(objectMapper.readValue(file.toFile(), StoredElm.class).contentHash())) {
+					return;
+				}
+				String elm = ElmLibraryWriterFactory.getWriter(LibraryContentType.JSON.mimeType())
+						.writeAsString(theLibrary.getLibrary());
+				Files.createDirectories(directory);
+				Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+				objectMapper.writeValue(temp.toFile(), new StoredElm(contentHash, elm));
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException | RuntimeException e) {
+				logger.warn("Unable to write ELM cache file {}: {}", file, e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Deletes the ELM of a changed library. A write queued before this runs first and is deleted with it.
+	 */
+	public void remove(VersionedIdentifier theLibraryIdentifier) {
+		removals.merge(key(theLibraryIdentifier), 1L, Long::sum);
+		writer.execute(() -> delete(fileFor(theLibraryIdentifier)));
+	}
+
+	private void recordMiss(VersionedIdentifier theLibraryIdentifier) {
+		String key = key(theLibraryIdentifier);
+		// The earliest outstanding miss decides, so a compilation that started before a removal is never written
+		misses.merge(key, removals.getOrDefault(key, 0L), Math::min);
+	}
+
+	private static String key(VersionedIdentifier theLibraryIdentifier) {
+		return theLibraryIdentifier.getId() + "|" + theLibraryIdentifier.getVersion();
+	}
+
+	private Path fileFor(VersionedIdentifier theLibraryIdentifier) {
+		String name = theLibraryIdentifier.getId() + "-"
+				+ (theLibraryIdentifier.getVersion() != null ? theLibraryIdentifier.getVersion() : "unversioned");
+		return directory.resolve(name.replaceAll("[^A-Za-z0-9._-]", "_") + ".elm.json");
+	}
+
+	private static void delete(Path theFile) {
+		try {
+			Files.deleteIfExists(theFile);
+		} catch (IOException e) {
+			logger.warn("Unable to delete ELM cache file {}: {}", theFile, e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the stored Library with the given name and version, or null if there is not exactly one.
+	 */
+	private IBaseResource findLibrary(VersionedIdentifier theLibraryIdentifier) {
+		SearchParameterMap params = SearchParameterMap.newSynchronous()
+				.add("name", new StringParam(theLibraryIdentifier.getId()).setExact(true));
+		if (theLibraryIdentifier.getVersion() != null) {
+			params.add("version", new TokenParam(theLibraryIdentifier.getVersion()));
+		}
+		List<IBaseResource> libraries =
+				daoRegistry.getResourceDao("Library").search(params, new SystemRequestDetails()).getAllResources();
+		return libraries.size() == 1 ? libraries.get(0) : null;
+	}
+
+	/**
+	 * Hashes the content attachments of the Library.
+	 */
+	private String contentHash(IBaseResource theLibrary) {
+		FhirTerser terser = fhirContext.newTerser();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (IBase attachment : terser.getValues(theLibrary, "content")) {
+				String contentType = terser.getSinglePrimitiveValueOrNull(attachment, "contentType");
+				String data = terser.getSinglePrimitiveValueOrNull(attachment, "data");
+				digest.update(String.valueOf(contentType).getBytes(StandardCharsets.UTF_8));
+				digest.update(String.valueOf(data).getBytes(StandardCharsets.UTF_8));
+			}
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	record StoredElm(String contentHash, String elm) {}
+}
@@ -0,0 +1,29 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+public class MeasureEvaluationProperties {
+
+	private Integer chunk_size = 500;
+	private Boolean cohort_retrieve = false;
+
+	/**
+	 * Number of subjects evaluated by each parallel task of {@code $evaluate-measure-population}.
+	 */
+	public int getChunkSize() {
+		return chunk_size;
+	}
+
+	public void setChunkSize(int chunk_size) {
+		this.chunk_size = chunk_size;
+	}
+
+	/**
+	 * Load the data of each chunk with one search per resource type, instead of one per subject and retrieve.
+	 */
+	public boolean isCohortRetrieve() {
+		return cohort_retrieve;
+	}
+
+	public void setCohortRetrieve(boolean cohort_retrieve) {
+		this.cohort_retrieve = cohort_retrieve;
+	}
+}
@@ -0,0 +1,315 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Merges MeasureReports computed over disjoint sets of subjects into one summary report, by adding up the
+ * population counts of every group, stratifier and stratum. Reports are matched up by group and stratifier id
+ * (or position) and strata by value, so partial reports may be merged in any order.
+ * <p>
+ * Proportion and ratio scores are recomputed from the merged counts. Other scorings are left unscored, as they
+ * cannot be derived from counts alone.
+ */
+public class MeasureReportMerger {
+
+	private static final String INITIAL_POPULATION = "initial-population";
+	private static final String NUMERATOR = "numerator";
+	private static final String NUMERATOR_EXCLUSION = "numerator-exclusion";
+	private static final String DENOMINATOR = "denominator";
+	private static final String DENOMINATOR_EXCLUSION = "denominator-exclusion";
+	private static final String DENOMINATOR_EXCEPTION = "denominator-exception";
+
+	private MeasureReportMerger() {}
+
+	/**
+	 * Adds the counts of {@code theSource} into {@code theTarget}, returning the target (or a summary copy of the
+	 * source when the target is null).
+	 */
+	public static MeasureReport merge(MeasureReport theTarget, MeasureReport theSource) {
+		if (theSource == null) {
+			return theTarget;
+		}
+		if (theTarget == null) {
+			MeasureReport summary = theSource.copy();
+			summary.setId((String) null);
+			summary.setType(MeasureReport.MeasureReportType.SUMMARY);
+			summary.setSubject(null);
+			// The per-subject evaluated resources are exactly what a population report must not accumulate
+			summary.getEvaluatedResource().clear();
+			summary.getContained().clear();
+			// Supplemental data of a subject points at the contained resources dropped above
+			summary.getExtension().removeIf(MeasureReportMerger::referencesContained);
+			summary.getGroup().forEach(MeasureReportMerger::clearSubjectData);
+			return summary;
+		}
+		for (int i = 0; i < theSource.getGroup().size(); i++) {
+			MeasureReport.MeasureReportGroupComponent sourceGroup = theSource.getGroup().get(i);
+			MeasureReport.MeasureReportGroupComponent targetGroup = findGroup(theTarget, sourceGroup, i);
+			if (targetGroup == null) {
+				MeasureReport.MeasureReportGroupComponent copy = sourceGroup.copy();
+				clearSubjectData(copy);
+				theTarget.addGroup(copy);
+				continue;
+			}
+			addPopulations(targetGroup.getPopulation(), sourceGroup.getPopulation());
+			for (int s = 0; s < sourceGroup.getStratifier().size(); s++) {
+				mergeStratifier(targetGroup, sourceGroup.getStratifier().get(s), s);
+			}
+		}
+		return theTarget;
+	}
+
+	/**
+	 * Recomputes the proportion or ratio scores of every group and stratum from the merged counts.
+	 */
+	public static void score(MeasureReport theReport, Measure theMeasure) {
+		String scoring = theMeasure.hasScoring() ? theMeasure.getScoring().getCodingFirstRep().getCode() : null;
+		for (int i = 0; i < theReport.getGroup().size(); i++) {
+			MeasureReport.MeasureReportGroupComponent group = theReport.getGroup().get(i);
+			String groupScoring = groupScoring(theMeasure, group, i, scoring);
+			if (!isScoredByCounts(groupScoring)) {
+				continue;
+			}
+			boolean ratio = "ratio".equals(groupScoring);
+			group.setMeasureScore(score(group.getPopulation(), ratio));
+			for (MeasureReport.MeasureReportGroupStratifierComponent stratifier : group.getStratifier()) {
+				for (MeasureReport.StratifierGroupComponent stratum : stratifier.getStratum()) {
+					stratum.setMeasureScore(stratumScore(stratum.getPopulation(), ratio));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops what only holds for the subjects of a single report: the scores, which {@link #score} recomputes from
+	 * the merged counts, and the subject lists of the populations.
+	 */
+	private static void clearSubjectData(MeasureReport.MeasureReportGroupComponent theGroup) {
+		theGroup.setMeasureScore(null);
+		theGroup.getPopulation().forEach(population -> population.setSubjectResults(null));
+		for (MeasureReport.MeasureReportGroupStratifierComponent stratifier : theGroup.getStratifier()) {
+			stratifier.getStratum().forEach(MeasureReportMerger::clearSubjectData);
+		}
+	}
+
+	private static void clearSubjectData(MeasureReport.StratifierGroupComponent theStratum) {
+		theStratum.setMeasureScore(null);
+		theStratum.getPopulation().forEach(population -> population.setSubjectResults(null));
+	}
+
+	private static boolean referencesContained(Extension theExtension) {
+		return theExtension.getValue() instanceof Reference reference
+				&& reference.hasReference()
+				&& reference.getReference().startsWith("#");
+	}
+
+	private static MeasureReport.MeasureReportGroupComponent findGroup(
+			MeasureReport theReport, MeasureReport.MeasureReportGroupComponent theGroup, int theIndex) {
+		if (theGroup.hasId()) {
+			for (MeasureReport.MeasureReportGroupComponent group : theReport.getGroup()) {
+				if (theGroup.getId().equals(group.getId())) {
+					return group;
+				}
+			}
+			return null;
+		}
+		return theIndex < theReport.getGroup().size() ? theReport.getGroup().get(theIndex) : null;
+	}
+
+	private static void mergeStratifier(
+			MeasureReport.MeasureReportGroupComponent theTargetGroup,
+			MeasureReport.MeasureReportGroupStratifierComponent theSource,
+			int theIndex) {
+		MeasureReport.MeasureReportGroupStratifierComponent target = null;
+		for (MeasureReport.MeasureReportGroupStratifierComponent candidate : theTargetGroup.getStratifier()) {
+			if (theSource.hasId() ? theSource.getId().equals(candidate.getId()) : sameConcepts(theSource.getCode(), candidate.getCode())) {
+				target = candidate;
+				break;
+			}
+		}
+		if (target == null && !theSource.hasId() && theIndex < theTargetGroup.getStratifier().size()) {
+			target = theTargetGroup.getStratifier().get(theIndex);
+		}
+		if (target == null) {
+			MeasureReport.MeasureReportGroupStratifierComponent copy = theSource.copy();
+			copy.getStratum().forEach(MeasureReportMerger::clearSubjectData);
+			theTargetGroup.addStratifier(copy);
+			return;
+		}
+		for (MeasureReport.StratifierGroupComponent sourceStratum : theSource.getStratum()) {
+			MeasureReport.StratifierGroupComponent targetStratum = null;
+			for (MeasureReport.StratifierGroupComponent candidate : target.getStratum()) {
+				if (stratumKey(candidate).equals(stratumKey(sourceStratum))) {
+					targetStratum = candidate;
+					break;
+				}
+			}
+			if (targetStratum == null) {
+				MeasureReport.StratifierGroupComponent copy = sourceStratum.copy();
+				clearSubjectData(copy);
+				target.addStratum(copy);
+			} else {
+				addStratumPopulations(targetStratum.getPopulation(), sourceStratum.getPopulation());
+			}
+		}
+	}
+
+	private static void addPopulations(
+			List<MeasureReport.MeasureReportGroupPopulationComponent> theTarget,
+			List<MeasureReport.MeasureReportGroupPopulationComponent> theSource) {
+		for (MeasureReport.MeasureReportGroupPopulationComponent source : theSource) {
+			MeasureReport.MeasureReportGroupPopulationComponent target = null;
+			for (MeasureReport.MeasureReportGroupPopulationComponent candidate : theTarget) {
+				if (Objects.equals(populationKey(candidate.getId(), candidate.getCode()), populationKey(source.getId(), source.getCode()))) {
+					target = candidate;
+					break;
+				}
+			}
+			if (target == null) {
+				MeasureReport.MeasureReportGroupPopulationComponent copy = source.copy();
+				copy.setSubjectResults(null);
+				theTarget.add(copy);
+			} else {
+				target.setCount(target.getCount() + source.getCount());
+			}
+		}
+	}
+
+	private static void addStratumPopulations(
+			List<MeasureReport.StratifierGroupPopulationComponent> theTarget,
+			List<MeasureReport.StratifierGroupPopulationComponent> theSource) {
+		for (MeasureReport.StratifierGroupPopulationComponent source : theSource) {
+			MeasureReport.StratifierGroupPopulationComponent target = null;
+			for (MeasureReport.StratifierGroupPopulationComponent candidate : theTarget) {
+				if (Objects.equals(populationKey(candidate.getId(), candidate.getCode()), populationKey(source.getId(), source.getCode()))) {
+					target = candidate;
+					break;
+				}
+			}
+			if (target == null) {
+				MeasureReport.StratifierGroupPopulationComponent copy = source.copy();
+				copy.setSubjectResults(null);
+				theTarget.add(copy);
+			} else {
+				target.setCount(target.getCount() + source.getCount());
+			}
+		}
+	}
+
+	private static String populationKey(String theId, CodeableConcept theCode) {
+		return theId != null ? theId : conceptKey(theCode);
+	}
+
+	private static String stratumKey(MeasureReport.StratifierGroupComponent theStratum) {
+		StringBuilder key = new StringBuilder(conceptKey(theStratum.getValue()));
+		for (MeasureReport.StratifierGroupComponentComponent component : theStratum.getComponent()) {
+			key.append(';').append(conceptKey(component.getCode())).append('=').append(conceptKey(component.getValue()));
+		}
+		return key.toString();
+	}
+
+	private static boolean sameConcepts(List<CodeableConcept> theFirst, List<CodeableConcept> theSecond) {
+		if (theFirst.size() != theSecond.size()) {
+			return false;
+		}
+		for (int i = 0; i < theFirst.size(); i++) {
+			if (!conceptKey(theFirst.get(i)).equals(conceptKey(theSecond.get(i)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String conceptKey(CodeableConcept theConcept) {
+		if (theConcept == null) {
+			return "";
+		}
+		StringBuilder key = new StringBuilder();
+		for (Coding coding : theConcept.getCoding()) {
+			key.append(coding.getSystem()).append('|').append(coding.getCode()).append(',');
+		}
+		return key.length() > 0 ? key.toString() : String.valueOf(theConcept.getText());
+	}
+
+	private static String groupScoring(Measure theMeasure, MeasureReport.MeasureReportGroupComponent theGroup, int theIndex, String theDefault) {
+		// Measures may override scoring per group through the cqfm-scoring extension
+		Measure.MeasureGroupComponent measureGroup = null;
+		for (Measure.MeasureGroupComponent candidate : theMeasure.getGroup()) {
+			if (theGroup.hasId() && theGroup.getId().equals(candidate.getId())) {
+				measureGroup = candidate;
+			}
+		}
+		if (measureGroup == null && theIndex < theMeasure.getGroup().size()) {
+			measureGroup = theMeasure.getGroup().get(theIndex);
+		}
+		if (measureGroup != null) {
+			var extension = measureGroup.getExtensionByUrl("http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-scoring");
+			if (extension != null && extension.getValue() instanceof CodeableConcept concept) {
+				return concept.getCodingFirstRep().getCode();
+			}
+		}
+		return theDefault;
+	}
+
+	private static boolean isScoredByCounts(String theScoring) {
+		return "proportion".equals(theScoring) || "ratio".equals(theScoring);
+	}
+
+	private static Quantity score(List<MeasureReport.MeasureReportGroupPopulationComponent> thePopulations, boolean theRatio) {
+		int[] counts = new int[6];
+		for (MeasureReport.MeasureReportGroupPopulationComponent population : thePopulations) {
+			count(counts, population.getCode(), population.getCount());
+		}
+		return theRatio ? ratio(counts) : proportion(counts);
+	}
+
+	private static Quantity stratumScore(List<MeasureReport.StratifierGroupPopulationComponent> thePopulations, boolean theRatio) {
+		int[] counts = new int[6];
+		for (MeasureReport.StratifierGroupPopulationComponent population : thePopulations) {
+			count(counts, population.getCode(), population.getCount());
+		}
+		return theRatio ? ratio(counts) : proportion(counts);
+	}
+
+	private static void count(int[] theCounts, CodeableConcept theCode, int theCount) {
+		switch (theCode.getCodingFirstRep().getCode() != null ? theCode.getCodingFirstRep().getCode() : "") {
+			case INITIAL_POPULATION -> theCounts[0] += theCount;
+			case NUMERATOR -> theCounts[1] += theCount;
+			case NUMERATOR_EXCLUSION -> theCounts[2] += theCount;
+			case DENOMINATOR -> theCounts[3] += theCount;
+			case DENOMINATOR_EXCLUSION -> theCounts[4] += theCount;
+			case DENOMINATOR_EXCEPTION -> theCounts[5] += theCount;
+			default -> {
+				// Not part of the score
+			}
+		}
+	}
+
+	private static Quantity proportion(int[] theCounts) {
+		return quotient(theCounts[1] - theCounts[2], theCounts[3] - theCounts[4] - theCounts[5]);
+	}
+
+	private static Quantity ratio(int[] theCounts) {
+		// Ratio measures have no denominator exceptions
+		return quotient(theCounts[1] - theCounts[2], theCounts[3] - theCounts[4]);
+	}
+
+	private static Quantity quotient(int theNumerator, int theDenominator) {
+		if (theDenominator <= 0) {
+			return null;
+		}
+		return new Quantity()
+				.setValue(BigDecimal.valueOf(theNumerator).divide(BigDecimal.valueOf(theDenominator), MathContext.DECIMAL64));
+	}
+}
@@ -0,0 +1,201 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.cr.repo.HapiFhirRepository;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Period;
+import org.opencds.cqf.fhir.api.Repository;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.opencds.cqf.fhir.cr.measure.r4.R4MeasureProcessor;
+import org.opencds.cqf.fhir.cr.measure.r4.R4RepositorySubjectProvider;
+import org.opencds.cqf.fhir.utility.monad.Eithers;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Population {@code $evaluate-measure} that spreads the subjects over the CQL executor.
+ * <p>
+ * The subjects (the members of a Group, or every Patient) are split into chunks. Each chunk is evaluated on the CQL
+ * executor as one population report over its subjects, with one measure processor and so one engine per chunk, all
+ * sharing the global library and ValueSet caches. Chunks run with their own copy of the caller's request details and
+ * their own repository, as neither is safe to share between threads. The partial reports are merged into the
+ * summary report by {@link MeasureReportMerger}. Subject ids are read a page at a time so that chunks start
+ * evaluating while the rest of the population is still being listed.
+ * <p>
+ * With {@code cohort_retrieve} enabled, each chunk binds a {@link CohortRetrieveCache} to its thread, so the data of
+ * the whole chunk is loaded with a few set-based searches rather than with the searches of every single subject.
+ */
+public class ParallelMeasureEvaluationProvider {
+	private static final Logger logger = LoggerFactory.getLogger(ParallelMeasureEvaluationProvider.class);
+
+	private final DaoRegistry daoRegistry;
+	private final RestfulServer restfulServer;
+	private final ExecutorService cqlExecutor;
+	private final MeasureEvaluationProperties properties;
+	private final MeasureEvaluationOptions measureEvaluationOptions;
+
+	public ParallelMeasureEvaluationProvider(
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			ExecutorService theCqlExecutor,
+			MeasureEvaluationProperties theProperties,
+			MeasureEvaluationOptions theMeasureEvaluationOptions) {
+		daoRegistry = theDaoRegistry;
+		restfulServer = theRestfulServer;
+		cqlExecutor = theCqlExecutor;
+		properties = theProperties;
+		measureEvaluationOptions = theMeasureEvaluationOptions;
+	}
+
+	@Operation(name = "$evaluate-measure-population", typeName = "Measure", idempotent = true)
+	public MeasureReport evaluatePopulation(
+			@IdParam IdType theId,
+			@OperationParam(name = "periodStart") String thePeriodStart,
+			@OperationParam(name = "periodEnd") String thePeriodEnd,
+			@OperationParam(name = "subject") String theSubject,
+			@OperationParam(name = "chunkSize") IntegerType theChunkSize,
+			RequestDetails theRequestDetails) {
+		long start = System.currentTimeMillis();
+		Measure measure = (Measure) daoRegistry.getResourceDao("Measure").read(theId, theRequestDetails);
+		int chunkSize = theChunkSize != null && theChunkSize.getValue() != null
+				? theChunkSize.getValue()
+				: properties.getChunkSize();
+		if (chunkSize < 1) {
+			throw new InvalidRequestException("chunkSize must be positive");
+		}
+		IdType measureId = theId.toUnqualifiedVersionless();
+
+		List<Future<MeasureReport>> chunks = new ArrayList<>();
+		int[] subjectCount = new int[1];
+		PopulationSubjects.forEachChunk(daoRegistry, theSubject, chunkSize, theRequestDetails, chunk -> {
+			subjectCount[0] += chunk.size();
+			RequestDetails chunkRequestDetails = chunkRequestDetails(theRequestDetails);
+			chunks.add(cqlExecutor.submit(() -> {
+				if (!properties.isCohortRetrieve()) {
+					return evaluateChunk(chunkRequestDetails, measure, thePeriodStart, thePeriodEnd, chunk);
+				}
+				CohortRetrieveCache cohort = new CohortRetrieveCache(idParts(chunk));
+				return cohort.evaluate(
+						() -> evaluateChunk(chunkRequestDetails, measure, thePeriodStart, thePeriodEnd, chunk));
+			}));
+		});
+
+		MeasureReport report = null;
+		try {
+			for (Future<MeasureReport> chunk : chunks) {
+				report = MeasureReportMerger.merge(report, chunk.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			chunks.forEach(chunk -> chunk.cancel(true));
+			throw new InternalErrorException("Interrupted while evaluating " + measureId.getValue(), e);
+		} catch (ExecutionException e) {
+			chunks.forEach(chunk -> chunk.cancel(true));
+			throw new InternalErrorException("Unable to evaluate " + measureId.getValue(), e.getCause());
+		}
+
+		if (report == null) {
+			report = emptyReport(measure, thePeriodStart, thePeriodEnd);
+		}
+		if (theSubject != null) {
+			report.getSubject().setReference(theSubject);
+		}
+		MeasureReportMerger.score(report, measure);
+		logger.info(
+				"Evaluated {} for {} subjects in {} chunks in {} ms",
+				measureId.getValue(),
+				subjectCount[0],
+				chunks.size(),
+				System.currentTimeMillis() - start);
+		return report;
+	}
+
+	/**
+	 * Evaluates the measure for the subjects of one chunk into a population report, with a repository and measure
+	 * processor of its own.
+	 */
+	MeasureReport evaluateChunk(
+			RequestDetails theRequestDetails,
+			Measure theMeasure,
+			String thePeriodStart,
+			String thePeriodEnd,
+			List<String> theSubjects) {
+		Repository repository = new HapiFhirRepository(daoRegistry, theRequestDetails, restfulServer);
+		R4MeasureProcessor processor = new R4MeasureProcessor(
+				repository,
+				measureEvaluationOptions,
+				new R4RepositorySubjectProvider(measureEvaluationOptions.getSubjectProviderOptions()));
+		return processor.evaluateMeasure(
+				Eithers.forRight3(theMeasure.copy()),
+				thePeriodStart,
+				thePeriodEnd,
+				"population",
+				theSubjects,
+				null,
+				null);
+	}
+
+	/**
+	 * Returns request details for one chunk: the caller's request, tenant and operation, but with user data of its
+	 * own, so that what interceptors cache on the details of one chunk is not shared with other threads.
+	 */
+	static RequestDetails chunkRequestDetails(RequestDetails theRequestDetails) {
+		if (theRequestDetails instanceof ServletRequestDetails servletRequestDetails) {
+			ServletRequestDetails details = new ServletRequestDetails(theRequestDetails.getInterceptorBroadcaster());
+			details.setServer(servletRequestDetails.getServer());
+			details.setServletRequest(servletRequestDetails.getServletRequest());
+			details.setServletResponse(servletRequestDetails.getServletResponse());
+			details.setTenantId(theRequestDetails.getTenantId());
+			details.setFhirServerBase(theRequestDetails.getFhirServerBase());
+			details.setCompleteUrl(theRequestDetails.getCompleteUrl());
+			details.setRequestType(theRequestDetails.getRequestType());
+			details.setRestOperationType(theRequestDetails.getRestOperationType());
+			return details;
+		}
+		SystemRequestDetails details = new SystemRequestDetails();
+		details.setTenantId(theRequestDetails.getTenantId());
+		if (theRequestDetails instanceof SystemRequestDetails systemRequestDetails) {
+			details.setRequestPartitionId(systemRequestDetails.getRequestPartitionId());
+		}
+		return details;
+	}
+
+	private static List<String> idParts(List<String> theSubjects) {
+		List<String> ids = new ArrayList<>(theSubjects.size());
+		for (String subject : theSubjects) {
+			ids.add(new IdType(subject).getIdPart());
+		}
+		return ids;
+	}
+
+	private static MeasureReport emptyReport(Measure theMeasure, String thePeriodStart, String thePeriodEnd) {
+		MeasureReport report = new MeasureReport();
+		report.setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+		report.setType(MeasureReport.MeasureReportType.SUMMARY);
+		report.setMeasure(theMeasure.getUrl());
+		Period period = new Period();
+		period.setStartElement(thePeriodStart != null ? new DateTimeType(thePeriodStart) : null);
+		period.setEndElement(thePeriodEnd != null ? new DateTimeType(thePeriodEnd) : null);
+		report.setPeriod(period);
+		return report;
+	}
+}
@@ -0,0 +1,64 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Lists the subjects of a population operation in chunks: the active members of a Group, or every Patient when no
+ * subject is given. Patients are read a page at a time, so each chunk is handed over before the next page is read.
+ */
+public class PopulationSubjects {
+
+	private PopulationSubjects() {}
+
+	public static void forEachChunk(
+			DaoRegistry theDaoRegistry,
+			String theSubject,
+			int theChunkSize,
+			RequestDetails theRequestDetails,
+			Consumer<List<String>> theConsumer) {
+		if (theSubject != null && theSubject.startsWith("Group/")) {
+			Group group = (Group) theDaoRegistry.getResourceDao("Group").read(new IdType(theSubject), theRequestDetails);
+			List<String> chunk = new ArrayList<>(theChunkSize);
+			for (Group.GroupMemberComponent member : group.getMember()) {
+				if (!member.getInactive() && member.getEntity().hasReference()) {
+					chunk.add(member.getEntity().getReference());
+				}
+				if (chunk.size() == theChunkSize) {
+					theConsumer.accept(chunk);
+					chunk = new ArrayList<>(theChunkSize);
+				}
+			}
+			if (!chunk.isEmpty()) {
+				theConsumer.accept(chunk);
+			}
+			return;
+		}
+		if (theSubject != null) {
+			throw new InvalidRequestException("subject must be a Group reference, or omitted for all Patients");
+		}
+		IBundleProvider patients =
+				theDaoRegistry.getResourceDao("Patient").search(new SearchParameterMap(), theRequestDetails);
+		for (int from = 0; ; from += theChunkSize) {
+			List<IBaseResource> page = patients.getResources(from, from + theChunkSize);
+			if (page.isEmpty()) {
+				return;
+			}
+			List<String> chunk = new ArrayList<>(page.size());
+			for (IBaseResource patient : page) {
+				chunk.add(patient.getIdElement().toUnqualifiedVersionless().getValue());
+			}
+			theConsumer.accept(chunk);
+		}
+	}
+}
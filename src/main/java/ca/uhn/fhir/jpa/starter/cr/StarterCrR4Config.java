@@ -8,11 +8,18 @@ import ca.uhn.fhir.cr.config.r4.ExtractOperationConfig;
 import ca.uhn.fhir.cr.config.r4.PackageOperationConfig;
 import ca.uhn.fhir.cr.config.r4.PopulateOperationConfig;
 import ca.uhn.fhir.cr.config.r4.QuestionnaireOperationConfig;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.starter.annotations.OnR4Condition;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.provider.ResourceProviderFactory;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import java.util.concurrent.ExecutorService;
+
 @Configuration
 @Conditional({OnR4Condition.class, CrConfigCondition.class})
 @Import({
@@ -26,4 +33,37 @@ import org.springframework.context.annotation.Import;
 	PopulateOperationConfig.class,
 	QuestionnaireOperationConfig.class
 })
-public class StarterCrR4Config {}
+public class StarterCrR4Config {
+
+	@Bean
+	public ParallelMeasureEvaluationProvider parallelMeasureEvaluationProvider(
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			ExecutorService theCqlExecutor,
+			CrProperties theCrProperties,
+			MeasureEvaluationOptions theMeasureEvaluationOptions,
+			ResourceProviderFactory theResourceProviderFactory) {
+		var provider = new ParallelMeasureEvaluationProvider(
+				theDaoRegistry,
+				theRestfulServer,
+				theCqlExecutor,
+				theCrProperties.getMeasureEvaluation(),
+				theMeasureEvaluationOptions);
+		// Registered on the RestfulServer along with the CR operation providers by the PostInitProviderRegisterer
+		theResourceProviderFactory.addSupplier(() -> provider);
+		return provider;
+	}
+
+	@Bean
+	public StreamingCareGapsProvider streamingCareGapsProvider(
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			ExecutorService theCqlExecutor,
+			CrProperties theCrProperties,
+			ResourceProviderFactory theResourceProviderFactory) {
+		var provider = new StreamingCareGapsProvider(
+				theDaoRegistry, theRestfulServer, theCqlExecutor, theCrProperties.getCareGaps());
+		theResourceProviderFactory.addSupplier(() -> provider);
+		return provider;
+	}
+}
@@ -0,0 +1,218 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.cr.repo.HapiFhirRepository;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.util.OperationOutcomeUtil;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.fhir.api.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * {@code $care-gaps} for large populations, streamed to the client as it is computed.
+ * <p>
+ * The subjects (the members of a Group, or every Patient) are split into chunks that are evaluated on the CQL
+ * executor through the regular {@code $care-gaps} of the CR module, one subject at a time. At most
+ * {@code chunks_in_flight} chunks are evaluated or waiting to be written at any time. Each finished chunk's gaps-in-care
+ * documents are appended to the response in subject order and then dropped, so memory stays flat however large the
+ * population is.
+ * <p>
+ * The response is a JSON Parameters resource with the same {@code return} parameters as {@code $care-gaps}. Once the
+ * first chunk has been written the status can no longer change; a later failure is reported as a final
+ * {@code error} parameter holding an OperationOutcome.
+ */
+public class StreamingCareGapsProvider {
+	private static final Logger logger = LoggerFactory.getLogger(StreamingCareGapsProvider.class);
+
+	private final DaoRegistry daoRegistry;
+	private final RestfulServer restfulServer;
+	private final ExecutorService cqlExecutor;
+	private final CareGapsProperties properties;
+
+	public StreamingCareGapsProvider(
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			ExecutorService theCqlExecutor,
+			CareGapsProperties theProperties) {
+		daoRegistry = theDaoRegistry;
+		restfulServer = theRestfulServer;
+		cqlExecutor = theCqlExecutor;
+		properties = theProperties;
+	}
+
+	@Operation(name = "$care-gaps-stream", typeName = "Measure", idempotent = true, manualResponse = true)
+	public void careGapsStream(
+			@OperationParam(name = "periodStart") String thePeriodStart,
+			@OperationParam(name = "periodEnd") String thePeriodEnd,
+			@OperationParam(name = "subject") String theSubject,
+			@OperationParam(name = "status") List<String> theStatus,
+			@OperationParam(name = "measureId") List<String> theMeasureId,
+			@OperationParam(name = "measureIdentifier") List<String> theMeasureIdentifier,
+			@OperationParam(name = "measureUrl") List<String> theMeasureUrl,
+			RequestDetails theRequestDetails,
+			HttpServletResponse theServletResponse)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		Parameters template = new Parameters();
+		addAll(template, "periodStart", thePeriodStart != null ? List.of(thePeriodStart) : null);
+		addAll(template, "periodEnd", thePeriodEnd != null ? List.of(thePeriodEnd) : null);
+		addAll(template, "status", theStatus);
+		addAll(template, "measureId", theMeasureId);
+		addAll(template, "measureIdentifier", theMeasureIdentifier);
+		addAll(template, "measureUrl", theMeasureUrl);
+
+		Repository repository = new HapiFhirRepository(daoRegistry, theRequestDetails, restfulServer);
+		FhirContext fhirContext = restfulServer.getFhirContext();
+		int chunkSize = Math.max(1, properties.getChunk_size());
+		int chunksInFlight = Math.max(1, properties.getChunks_in_flight());
+
+		Deque<Future<Parameters>> pending = new ArrayDeque<>();
+		ResponseWriter response = new ResponseWriter(theServletResponse, fhirContext.newJsonParser());
+		int[] subjectCount = new int[1];
+		try {
+			PopulationSubjects.forEachChunk(daoRegistry, theSubject, chunkSize, theRequestDetails, chunk -> {
+				subjectCount[0] += chunk.size();
+				if (pending.size() >= chunksInFlight) {
+					response.write(await(pending.removeFirst()));
+				}
+				pending.addLast(cqlExecutor.submit(() -> evaluateChunk(repository, template, chunk)));
+			});
+			while (!pending.isEmpty()) {
+				response.write(await(pending.removeFirst()));
+			}
+		} catch (RuntimeException e) {
+			pending.forEach(chunk -> chunk.cancel(true));
+			if (!response.isStarted()) {
+				throw e;
+			}
+			logger.error("Streaming $care-gaps failed after the response was started", e);
+			IBaseOperationOutcome outcome = OperationOutcomeUtil.newInstance(fhirContext);
+			OperationOutcomeUtil.addIssue(fhirContext, outcome, "error", e.getMessage(), null, "exception");
+			response.writeError(outcome);
+		}
+		response.finish();
+		logger.info(
+				"Streamed care gaps for {} subjects in {} ms", subjectCount[0], System.currentTimeMillis() - start);
+	}
+
+	private static void addAll(Parameters theParameters, String theName, List<String> theValues) {
+		if (theValues != null) {
+			theValues.forEach(value -> theParameters.addParameter(theName, new StringType(value)));
+		}
+	}
+
+	Parameters evaluateChunk(Repository theRepository, Parameters theTemplate, List<String> theSubjects) {
+		Parameters results = new Parameters();
+		for (String subject : theSubjects) {
+			Parameters parameters = theTemplate.copy();
+			parameters.addParameter("subject", new StringType(subject));
+			Parameters subjectResults =
+					theRepository.invoke(Measure.class, "$care-gaps", parameters, Parameters.class, Map.of());
+			if (subjectResults != null) {
+				results.getParameter().addAll(subjectResults.getParameter());
+			}
+		}
+		return results;
+	}
+
+	private static Parameters await(Future<Parameters> theChunk) {
+		try {
+			return theChunk.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while evaluating care gaps", e);
+		} catch (ExecutionException e) {
+			throw new InternalErrorException("Unable to evaluate care gaps: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Writes a Parameters resource one parameter at a time, opening the response on the first write.
+	 */
+	private static class ResponseWriter {
+		private final HttpServletResponse servletResponse;
+		private final IParser parser;
+		private Writer writer;
+		private boolean first = true;
+
+		ResponseWriter(HttpServletResponse theServletResponse, IParser theParser) {
+			servletResponse = theServletResponse;
+			parser = theParser;
+		}
+
+		boolean isStarted() {
+			return writer != null;
+		}
+
+		void write(Parameters theParameters) {
+			try {
+				for (Parameters.ParametersParameterComponent parameter : theParameters.getParameter()) {
+					if (parameter.hasResource()) {
+						writeParameter(parameter.getName(), parser.encodeResourceToString(parameter.getResource()));
+					}
+				}
+				// Hand each chunk to the client as soon as it is written
+				writer().flush();
+			} catch (IOException e) {
+				throw new InternalErrorException("Unable to write care gaps to the client", e);
+			}
+		}
+
+		void writeError(IBaseOperationOutcome theOutcome) throws IOException {
+			writeParameter("error", parser.encodeResourceToString(theOutcome));
+		}
+
+		void finish() throws IOException {
+			writer().write("]}");
+			writer().flush();
+		}
+
+		private void writeParameter(String theName, String theResource) throws IOException {
+			Writer out = writer();
+			if (!first) {
+				out.write(',');
+			}
+			first = false;
+			out.write("{\"name\":\"");
+			out.write(JsonStringEncoder.getInstance().quoteAsString(theName));
+			out.write("\",\"resource\":");
+			out.write(theResource);
+			out.write('}');
+		}
+
+		private Writer writer() throws IOException {
+			if (writer == null) {
+				servletResponse.setStatus(HttpServletResponse.SC_OK);
+				servletResponse.setContentType(Constants.CT_FHIR_JSON_NEW);
+				servletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+				writer = servletResponse.getWriter();
+				writer.write("{\"resourceType\":\"Parameters\",\"parameter\":[");
+			}
+			return writer;
+		}
+	}
+}
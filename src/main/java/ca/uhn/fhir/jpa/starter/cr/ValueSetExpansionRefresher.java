@@ -0,0 +1,133 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.cr.repo.HapiFhirRepository;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+import org.opencds.cqf.fhir.cql.Engines;
+import org.opencds.cqf.fhir.cql.EvaluationSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Expands ValueSets in the background as soon as they are created or updated on this server, and re-expands the
+ * known expansions drawing from a CodeSystem when it is written, so the first evaluation after the change finds
+ * the expansion ready. A written ValueSet refreshes both its url and its {@code url|version} expansion. Expansions
+ * whose inputs did not change are left alone.
+ * <p>
+ * Expansions are computed by the CQL terminology provider, with the same terminology settings as evaluations, and
+ * put into the global ValueSet cache, which persists them through its {@link ValueSetExpansionStore}.
+ */
+@Interceptor
+public class ValueSetExpansionRefresher {
+	private static final Logger logger = LoggerFactory.getLogger(ValueSetExpansionRefresher.class);
+
+	private final FhirContext fhirContext;
+	private final DaoRegistry daoRegistry;
+	private final RestfulServer restfulServer;
+	private final EvaluationSettings evaluationSettings;
+	private final ValueSetExpansionStore expansionStore;
+	private final ExecutorService expander;
+
+	public ValueSetExpansionRefresher(
+			FhirContext theFhirContext,
+			DaoRegistry theDaoRegistry,
+			RestfulServer theRestfulServer,
+			EvaluationSettings theEvaluationSettings,
+			ValueSetExpansionStore theExpansionStore) {
+		fhirContext = theFhirContext;
+		daoRegistry = theDaoRegistry;
+		restfulServer = theRestfulServer;
+		evaluationSettings = theEvaluationSettings;
+		expansionStore = theExpansionStore;
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("valueset-expander-");
+		threadFactory.setDaemon(true);
+		expander = Executors.newSingleThreadExecutor(threadFactory);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+	public void resourceCreated(IBaseResource theResource) {
+		resourceChanged(theResource);
+	}
+
+	@Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+	public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+		resourceChanged(theNewResource);
+	}
+
+	private void resourceChanged(IBaseResource theResource) {
+		String resourceType = fhirContext.getResourceType(theResource);
+		if (!"ValueSet".equals(resourceType) && !"CodeSystem".equals(resourceType)) {
+			return;
+		}
+		String url = fhirContext.newTerser().getSinglePrimitiveValueOrNull(theResource, "url");
+		if (url == null) {
+			return;
+		}
+		String version = fhirContext.newTerser().getSinglePrimitiveValueOrNull(theResource, "version");
+		Runnable refresh = "ValueSet".equals(resourceType)
+				? () -> {
+					refresh(url);
+					if (version != null) {
+						refresh(url + "|" + version);
+					}
+				}
+				: () -> expansionStore.getDependents(url).forEach(this::refresh);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCommit() {
+					expander.execute(refresh);
+				}
+			});
+		} else {
+			expander.execute(refresh);
+		}
+	}
+
+	private void refresh(String theKey) {
+		try {
+			if (expansionStore.isCurrent(theKey)) {
+				return;
+			}
+			long start = System.currentTimeMillis();
+			Map<String, List<Code>> valueSetCache = evaluationSettings.getValueSetCache();
+			valueSetCache.remove(theKey);
+			// The miss looks up the inputs that the expansion below is persisted with
+			valueSetCache.get(theKey);
+			String version = StringUtils.substringAfter(theKey, "|");
+			ValueSetInfo valueSet = new ValueSetInfo()
+					.withId(StringUtils.substringBefore(theKey, "|"))
+					.withVersion(version.isEmpty() ? null : version);
+			Iterable<Code> expansion = Engines.forRepository(
+							new HapiFhirRepository(daoRegistry, new SystemRequestDetails(), restfulServer),
+							evaluationSettings)
+					.getEnvironment()
+					.getTerminologyProvider()
+					.expand(valueSet);
+			List<Code> codes = new ArrayList<>();
+			expansion.forEach(codes::add);
+			valueSetCache.put(theKey, codes);
+			logger.debug("Expanded {} to {} codes in {} ms", theKey, codes.size(), System.currentTimeMillis() - start);
+		} catch (RuntimeException e) {
+			logger.warn("Unable to expand ValueSet {}: {}", theKey, e.getMessage());
+		}
+	}
+}
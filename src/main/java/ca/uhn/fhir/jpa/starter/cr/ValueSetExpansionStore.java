@@ -0,0 +1,270 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Second tier behind the global ValueSet cache: keeps every expansion the CQL terminology provider computed on disk,
+ * so a restarted server, or another node sharing the directory, does not expand large ValueSets again.
+ * <p>
+ * Each file is keyed by the cache key (the ValueSet canonical, optionally with {@code |version}) and records a hash
+ * of the expansion's inputs: the ValueSet content, the versions of the stored CodeSystems it includes and, through
+ * nested {@code valueSet} includes, the inputs of other ValueSets. On load the hash is checked against the stored
+ * resources, so an expansion whose inputs changed is never served.
+ * <p>
+ * The hash written with an expansion is the one {@link #lookup} computed before the expansion started, so an input
+ * changed while expanding leaves a hash that no longer matches rather than a current hash on an outdated expansion.
+ */
+public class ValueSetExpansionStore {
+	private static final Logger logger = LoggerFactory.getLogger(ValueSetExpansionStore.class);
+
+	private final Path directory;
+	private final DaoRegistry daoRegistry;
+	private final FhirContext fhirContext;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final ExecutorService writer;
+	// CodeSystem url -> keys of the expansions drawing from it, for those stored or loaded since startup
+	private final Map<String, Set<String>> dependents = new ConcurrentHashMap<>();
+
+	public ValueSetExpansionStore(Path theDirectory, DaoRegistry theDaoRegistry) {
+		directory = theDirectory;
+		daoRegistry = theDaoRegistry;
+		fhirContext = theDaoRegistry.getSystemDao().getContext();
+		CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("valueset-expansion-store-");
+		// A write lost at shutdown only costs one expansion after the restart
+		threadFactory.setDaemon(true);
+		writer = Executors.newSingleThreadExecutor(threadFactory);
+	}
+
+	/**
+	 * Returns the current inputs of the expansion for the key, together with the stored expansion if it was computed
+	 * from them. The inputs are null if the key is not backed by a stored ValueSet.
+	 */
+	public Lookup lookup(String theKey) {
+		Inputs inputs = inputs(theKey);
+		return new Lookup(inputs != null ? load(theKey, inputs) : null, inputs);
+	}
+
+	private List<Code> load(String theKey, Inputs theInputs) {
+		Path file = fileFor(theKey);
+		if (!Files.isRegularFile(file)) {
+			return null;
+		}
+		try {
+			StoredExpansion stored = objectMapper.readValue(file.toFile(), StoredExpansion.class);
+			if (!theInputs.hash().equals(stored.inputsHash())) {
+				logger.debug("Discarding stale expansion of {}", theKey);
+				Files.deleteIfExists(file);
+				return null;
+			}
+			index(theKey, stored.systems());
+			List<Code> codes = new ArrayList<>(stored.codes().size());
+			for (StoredCode code : stored.codes()) {
+				codes.add(new Code()
+						.withSystem(code.system())
+						.withVersion(code.version())
+						.withCode(code.code())
+						.withDisplay(code.display()));
+			}
+			return codes;
+		} catch (IOException e) {
+			logger.warn("Discarding unreadable expansion file {}: {}", file, e.getMessage());
+			delete(file);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a newly computed expansion in the background, unless the stored one was computed from the same inputs.
+	 *
+	 * @param theInputs the inputs {@link #lookup} returned before the expansion was computed
+	 */
+	public void store(String theKey, List<Code> theCodes, Inputs theInputs) {
+		List<StoredCode> codes = new ArrayList<>(theCodes.size());
+		for (Code code : theCodes) {
+			if (code != null) {
+				codes.add(new StoredCode(code.getSystem(), code.getVersion(), code.getCode(), code.getDisplay()));
+			}
+		}
+		writer.execute(() -> {
+			Path file = fileFor(theKey);
+			try {
+				index(theKey, theInputs.systems());
+				if (theInputs.hash().equals(storedInputsHash(file))) {
+					return;
+				}
+				Files.createDirectories(directory);
+				Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+				objectMapper.writeValue(
+						temp.toFile(), new StoredExpansion(theInputs.hash(), theInputs.systems(), codes));
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException | RuntimeException e) {
+				logger.warn("Unable to write expansion file {}: {}", file, e.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Whether the stored expansion for the key was computed from the current inputs.
+	 */
+	public boolean isCurrent(String theKey) {
+		Inputs inputs = inputs(theKey);
+		return inputs != null && inputs.hash().equals(storedInputsHash(fileFor(theKey)));
+	}
+
+	/**
+	 * Keys of the known expansions that include codes from the given CodeSystem.
+	 */
+	public Set<String> getDependents(String theCodeSystemUrl) {
+		return Set.copyOf(dependents.getOrDefault(theCodeSystemUrl, Set.of()));
+	}
+
+	private void index(String theKey, List<String> theSystems) {
+		for (String system : theSystems) {
+			dependents.computeIfAbsent(system, s -> ConcurrentHashMap.newKeySet()).add(theKey);
+		}
+	}
+
+	private String storedInputsHash(Path theFile) {
+		if (!Files.isRegularFile(theFile)) {
+			return null;
+		}
+		try {
+			return objectMapper.readValue(theFile.toFile(), StoredExpansion.class).inputsHash();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private Path fileFor(String theKey) {
+		return directory.resolve(sha256(theKey) + ".expansion.json");
+	}
+
+	private static void delete(Path theFile) {
+		try {
+			Files.deleteIfExists(theFile);
+		} catch (IOException e) {
+			logger.warn("Unable to delete expansion file {}: {}", theFile, e.getMessage());
+		}
+	}
+
+	/**
+	 * Hashes everything the expansion of the ValueSet behind the key depends on, or returns null if there is no
+	 * such stored ValueSet.
+	 */
+	private Inputs inputs(String theKey) {
+		Set<String> systems = new TreeSet<>();
+		StringBuilder inputs = new StringBuilder();
+		if (!appendInputs(theKey, inputs, systems, new TreeSet<>())) {
+			return null;
+		}
+		return new Inputs(sha256(inputs.toString()), new ArrayList<>(systems));
+	}
+
+	private boolean appendInputs(String theCanonical, StringBuilder theInputs, Set<String> theSystems, Set<String> theVisited) {
+		if (!theVisited.add(theCanonical)) {
+			return true;
+		}
+		IBaseResource valueSet = findByCanonical("ValueSet", theCanonical);
+		if (valueSet == null) {
+			return false;
+		}
+		// The content only; meta.lastUpdated and the narrative change on every write
+		IParser parser = fhirContext.newJsonParser().setDontEncodeElements(Set.of("ValueSet.meta", "ValueSet.text"));
+		theInputs.append(parser.encodeResourceToString(valueSet)).append('\n');
+
+		FhirTerser terser = fhirContext.newTerser();
+		List<IBase> includes = new ArrayList<>(terser.getValues(valueSet, "compose.include"));
+		includes.addAll(terser.getValues(valueSet, "compose.exclude"));
+		for (IBase include : includes) {
+			String system = terser.getSinglePrimitiveValueOrNull(include, "system");
+			if (system != null) {
+				theSystems.add(system);
+				theInputs.append(system).append('|').append(codeSystemVersion(system)).append('\n');
+			}
+			for (IBase nested : terser.getValues(include, "valueSet")) {
+				String canonical = terser.getSinglePrimitiveValueOrNull(nested, "value");
+				if (canonical != null && !appendInputs(canonical, theInputs, theSystems, theVisited)) {
+					theInputs.append(canonical).append("|missing\n");
+				}
+			}
+		}
+		return true;
+	}
+
+	private String codeSystemVersion(String theUrl) {
+		IBaseResource codeSystem = findByCanonical("CodeSystem", theUrl);
+		if (codeSystem == null) {
+			// Served by the terminology service rather than stored here
+			return "external";
+		}
+		FhirTerser terser = fhirContext.newTerser();
+		return codeSystem.getIdElement().getVersionIdPart() + "/" + terser.getSinglePrimitiveValueOrNull(codeSystem, "version");
+	}
+
+	private IBaseResource findByCanonical(String theResourceType, String theCanonical) {
+		SearchParameterMap params =
+				SearchParameterMap.newSynchronous().add("url", new UriParam(StringUtils.substringBefore(theCanonical, "|")));
+		String version = StringUtils.substringAfter(theCanonical, "|");
+		if (!version.isEmpty()) {
+			params.add("version", new TokenParam(version));
+		}
+		List<IBaseResource> resources =
+				daoRegistry.getResourceDao(theResourceType).search(params, new SystemRequestDetails()).getAllResources();
+		return resources.size() == 1 ? resources.get(0) : null;
+	}
+
+	private static String sha256(String theValue) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return HexFormat.of().formatHex(digest.digest(theValue.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * A hash of everything an expansion depends on, and the CodeSystems it draws from.
+	 */
+	public record Inputs(String hash, List<String> systems) {}
+
+	/**
+	 * The stored expansion, if current, and the inputs it was checked against.
+	 */
+	public record Lookup(List<Code> codes, Inputs inputs) {}
+
+	record StoredExpansion(String inputsHash, List<String> systems, List<StoredCode> codes) {}
+
+	record StoredCode(String system, String version, String code, String display) {}
+}
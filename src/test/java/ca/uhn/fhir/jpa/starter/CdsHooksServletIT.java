@@ -4,15 +4,21 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.cr.config.RepositoryConfig;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.searchparam.config.NicknameServiceConfig;
+import ca.uhn.fhir.jpa.starter.cdshooks.CdsHooksMetrics;
+import ca.uhn.fhir.jpa.starter.cdshooks.ModuleConfigurationPrefetchSvc;
 import ca.uhn.fhir.jpa.starter.cdshooks.StarterCdsHooksConfig;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
 import ca.uhn.hapi.fhir.cdshooks.api.ICdsServiceRegistry;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
 import ca.uhn.hapi.fhir.cdshooks.config.CdsHooksConfig;
+import ca.uhn.hapi.fhir.cdshooks.svc.prefetch.CdsPrefetchSvc;
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
@@ -31,7 +37,10 @@ import java.util.concurrent.TimeUnit;
 
 import static org.awaitility.Awaitility.await;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
@@ -64,6 +73,12 @@ class CdsHooksServletIT implements IServerSupport {
 	@Autowired
 	ICdsServiceRegistry myCdsServiceRegistry;
 
+	@Autowired
+	CdsPrefetchSvc myCdsPrefetchSvc;
+
+	@Autowired
+	MeterRegistry myMeterRegistry;
+
 	@LocalServerPort
 	private int port;
 
@@ -157,8 +172,59 @@ class CdsHooksServletIT implements IServerSupport {
 	void testRec10() throws IOException {
 		loadBundle("r4/opioidcds-10-order-sign-bundle.json", ourCtx, ourClient);
 		await().atMost(20000, TimeUnit.MILLISECONDS).until(() -> hasCdsServices());
+		var cdsRequest = rec10Request();
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			HttpPost request = new HttpPost(ourCdsBase + "/opioidcds-10-order-sign");
+			request.setEntity(new StringEntity(cdsRequest));
+			request.addHeader("Content-Type", "application/json");
+
+			CloseableHttpResponse httpResponse = httpClient.execute(request);
+			String result = EntityUtils.toString(httpResponse.getEntity());
+			Gson gsonResponse = new Gson();
+			JsonObject response = gsonResponse.fromJson(result, JsonObject.class);
+			assertNotNull(response);
+			JsonArray cards = response.getAsJsonArray("cards");
+			assertEquals(0, cards.size());
+//			assertEquals("\"Hello World!\"", cards.get(0).getAsJsonObject().get("summary").toString());
+		} catch (IOException ioe) {
+			fail(ioe.getMessage());
+		}
+	}
+
+	@Test
+	void testRec10PrefetchRunsConcurrently() throws IOException {
+		assertInstanceOf(ModuleConfigurationPrefetchSvc.class, myCdsPrefetchSvc);
+		loadBundle("r4/opioidcds-10-order-sign-bundle.json", ourCtx, ourClient);
+		await().atMost(20000, TimeUnit.MILLISECONDS).until(() -> hasCdsServices());
+		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
+			HttpPost request = new HttpPost(ourCdsBase + "/opioidcds-10-order-sign");
+			request.setEntity(new StringEntity(rec10Request()));
+			request.addHeader("Content-Type", "application/json");
+
+			CloseableHttpResponse httpResponse = httpClient.execute(request);
+			EntityUtils.consume(httpResponse.getEntity());
+			assertEquals(200, httpResponse.getStatusLine().getStatusCode());
+		}
+
+		// Every prefetch template of the service was resolved on the prefetch pool and timed there
+		CdsServiceJson service = myCdsServiceRegistry.getCdsServicesJson().getServices().stream()
+			.filter(candidate -> "opioidcds-10-order-sign".equals(candidate.getId()))
+			.findFirst()
+			.orElseThrow();
+		assertFalse(service.getPrefetch().isEmpty());
+		for (String item : service.getPrefetch().keySet()) {
+			Timer timer = myMeterRegistry.find(CdsHooksMetrics.PREFETCH_ITEM_TIMER)
+				.tag("service", "opioidcds-10-order-sign")
+				.tag("item", item)
+				.timer();
+			assertNotNull(timer, item);
+			assertTrue(timer.count() > 0, item);
+		}
+	}
+
+	private String rec10Request() {
 		var fhirServer = "  \"fhirServer\": " + "\"" + ourServerBase + "\"" + ",\n";
-		var cdsRequest = "{\n" +
+		return "{\n" +
 			"  \"hookInstance\": \"055b009c-4a7d-4db4-a35e-0e5198918ed1\",\n" +
 			"  \"hook\": \"order-sign\",\n" +
 			fhirServer +
@@ -229,21 +295,5 @@ class CdsHooksServletIT implements IServerSupport {
 			"    }\n" +
 			"  }\n" +
 			"}";
-		try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-			HttpPost request = new HttpPost(ourCdsBase + "/opioidcds-10-order-sign");
-			request.setEntity(new StringEntity(cdsRequest));
-			request.addHeader("Content-Type", "application/json");
-
-			CloseableHttpResponse httpResponse = httpClient.execute(request);
-			String result = EntityUtils.toString(httpResponse.getEntity());
-			Gson gsonResponse = new Gson();
-			JsonObject response = gsonResponse.fromJson(result, JsonObject.class);
-			assertNotNull(response);
-			JsonArray cards = response.getAsJsonArray("cards");
-			assertEquals(0, cards.size());
-//			assertEquals("\"Hello World!\"", cards.get(0).getAsJsonObject().get("summary").toString());
-		} catch (IOException ioe) {
-			fail(ioe.getMessage());
-		}
 	}
 }
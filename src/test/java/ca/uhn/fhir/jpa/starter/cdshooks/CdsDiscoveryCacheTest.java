@@ -0,0 +1,85 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServicesJson;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CdsDiscoveryCacheTest {
+
+	private final CdsDiscoveryCache cache = new CdsDiscoveryCache();
+	private final AtomicInteger renders = new AtomicInteger();
+
+	@Test
+	void keepsTheDocumentWhileTheServicesAreUnchanged() throws Exception {
+		CdsDiscoveryCache.Document first = cache.get(services("service-1"), () -> render("first"));
+		CdsDiscoveryCache.Document second = cache.get(services("service-1"), () -> render("second"));
+
+		assertSame(first, second);
+		assertEquals(1, renders.get());
+	}
+
+	@Test
+	void rendersAgainOnceTheRegistryHoldsOtherServices() throws Exception {
+		CdsDiscoveryCache.Document before = cache.get(services("service-1"), () -> render("before"));
+		// The registry picked up a new PlanDefinition without this node being told about it
+		CdsDiscoveryCache.Document after = cache.get(services("service-1", "service-2"), () -> render("after"));
+
+		assertNotEquals(before.etag(), after.etag());
+		assertEquals(2, renders.get());
+	}
+
+	@Test
+	void rendersAgainAfterAResourceChange() throws Exception {
+		cache.get(services("service-1"), () -> render("before"));
+
+		cache.handleChange(null);
+		cache.get(services("service-1"), () -> render("after"));
+
+		assertEquals(2, renders.get());
+	}
+
+	@Test
+	void doesNotKeepARenderThatRacedAChange() throws Exception {
+		cache.get(services("service-1"), () -> {
+			cache.invalidate();
+			return render("raced");
+		});
+		cache.get(services("service-1"), () -> render("after"));
+
+		assertEquals(2, renders.get());
+	}
+
+	@Test
+	void matchesItsOwnEtag() throws Exception {
+		CdsDiscoveryCache.Document document = cache.get(services("service-1"), () -> render("body"));
+
+		assertTrue(document.matches(document.etag()));
+		assertTrue(document.matches("W/" + document.etag()));
+	}
+
+	private byte[] render(String theBody) {
+		renders.incrementAndGet();
+		return theBody.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static CdsServicesJson services(String... theIds) {
+		CdsServicesJson services = new CdsServicesJson();
+		for (String id : theIds) {
+			CdsServiceJson service = new CdsServiceJson();
+			service.setId(id);
+			service.setHook("order-sign");
+			service.setTitle(id);
+			service.setDescription(id);
+			services.addService(service);
+		}
+		return services;
+	}
+}
@@ -0,0 +1,68 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CdsDiscoveryPrefetchStoreTest {
+
+	private final AtomicInteger computations = new AtomicInteger();
+
+	@Test
+	void isOnlyReachableFromItsOwnContext() {
+		FhirContext ownContext = new FhirContext(FhirVersionEnum.R4);
+		FhirContext otherContext = new FhirContext(FhirVersionEnum.R4);
+		CdsDiscoveryPrefetchStore store = new CdsDiscoveryPrefetchStore(ownContext, null);
+
+		store.register();
+		assertSame(store, CdsDiscoveryPrefetchStore.forContext(ownContext));
+		assertNull(CdsDiscoveryPrefetchStore.forContext(otherContext));
+
+		store.close();
+		assertNull(CdsDiscoveryPrefetchStore.forContext(ownContext));
+	}
+
+	@Test
+	void keepsFingerprintsUntilALibraryChanges() {
+		CdsDiscoveryPrefetchStore store = new CdsDiscoveryPrefetchStore(FhirContext.forR4Cached(), null);
+
+		assertEquals("a", store.fingerprint("PlanDefinition/1", "1", () -> compute("a")));
+		assertEquals("a", store.fingerprint("PlanDefinition/1", "1", () -> compute("b")));
+		assertEquals(1, computations.get());
+
+		store.handleChange(null);
+		assertEquals("c", store.fingerprint("PlanDefinition/1", "1", () -> compute("c")));
+		assertEquals(2, computations.get());
+	}
+
+	@Test
+	void computesTheFingerprintOfANewPlanDefinitionVersion() {
+		CdsDiscoveryPrefetchStore store = new CdsDiscoveryPrefetchStore(FhirContext.forR4Cached(), null);
+
+		store.fingerprint("PlanDefinition/1", "1", () -> compute("a"));
+		assertEquals("b", store.fingerprint("PlanDefinition/1", "2", () -> compute("b")));
+		assertEquals(2, computations.get());
+	}
+
+	@Test
+	void doesNotKeepAFingerprintThatRacedALibraryChange() {
+		CdsDiscoveryPrefetchStore store = new CdsDiscoveryPrefetchStore(FhirContext.forR4Cached(), null);
+
+		store.fingerprint("PlanDefinition/1", "1", () -> {
+			store.handleChange(null);
+			return compute("stale");
+		});
+		assertEquals("fresh", store.fingerprint("PlanDefinition/1", "1", () -> compute("fresh")));
+	}
+
+	private String compute(String theFingerprint) {
+		computations.incrementAndGet();
+		return theFingerprint;
+	}
+}
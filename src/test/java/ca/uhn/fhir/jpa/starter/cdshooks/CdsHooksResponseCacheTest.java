@@ -0,0 +1,163 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceRequestJson;
+import ca.uhn.hapi.fhir.cdshooks.api.json.CdsServiceResponseJson;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CdsHooksResponseCacheTest {
+
+	private static final String SERVICE_ID = "opioidcds-10-order-sign";
+
+	private final FhirContext fhirContext = FhirContext.forR4Cached();
+	private final AtomicInteger serviceCalls = new AtomicInteger();
+	private final Supplier<CdsServiceResponseJson> service = () -> {
+		serviceCalls.incrementAndGet();
+		return new CdsServiceResponseJson();
+	};
+	private CdsHooksResponseCache cache;
+
+	@BeforeEach
+	void setUp() {
+		CdsHooksResponseCacheProperties properties = new CdsHooksResponseCacheProperties();
+		properties.setEnabled(true);
+		cache = new CdsHooksResponseCache(fhirContext, new ObjectMapper(), properties, new SimpleMeterRegistry());
+	}
+
+	@Test
+	void memoizesRepeatedInvocations() {
+		CdsServiceResponseJson first = cache.get(SERVICE_ID, request("123", "instance-1"), service);
+		// A new hook instance for the same context is still the same request
+		CdsServiceResponseJson second = cache.get(SERVICE_ID, request("123", "instance-2"), service);
+
+		assertSame(first, second);
+		assertEquals(1, serviceCalls.get());
+	}
+
+	@Test
+	void keysByServiceAndContext() {
+		cache.get(SERVICE_ID, request("123", "instance-1"), service);
+		cache.get("another-service", request("123", "instance-1"), service);
+		cache.get(SERVICE_ID, request("456", "instance-1"), service);
+
+		assertEquals(3, serviceCalls.get());
+	}
+
+	@Test
+	void compartmentChangeBumpsThePatientGeneration() {
+		cache.get(SERVICE_ID, request("123", "instance-1"), service);
+		cache.get(SERVICE_ID, request("456", "instance-1"), service);
+
+		cache.resourceCreated(observationFor("123"));
+		cache.get(SERVICE_ID, request("123", "instance-2"), service);
+		cache.get(SERVICE_ID, request("456", "instance-2"), service);
+
+		// Only the patient whose data changed is recomputed
+		assertEquals(3, serviceCalls.get());
+	}
+
+	@Test
+	void patientChangeBumpsItsOwnGeneration() {
+		cache.get(SERVICE_ID, request("123", "instance-1"), service);
+
+		cache.resourceUpdated(patient("123"), patient("123"));
+		cache.get(SERVICE_ID, request("123", "instance-2"), service);
+
+		assertEquals(2, serviceCalls.get());
+	}
+
+	@Test
+	void responseComputedWhileTheDataChangesIsNotMemoized() {
+		cache.get(SERVICE_ID, request("123", "instance-1"), () -> {
+			cache.resourceCreated(observationFor("123"));
+			return service.get();
+		});
+		cache.get(SERVICE_ID, request("123", "instance-2"), service);
+
+		assertEquals(2, serviceCalls.get());
+	}
+
+	@Test
+	void generationIsBumpedAgainAfterCommit() {
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			cache.resourceDeleted(observationFor("123"));
+			// A request served between the precommit hook and the commit still sees the old data
+			cache.get(SERVICE_ID, request("123", "instance-1"), service);
+			TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		cache.get(SERVICE_ID, request("123", "instance-2"), service);
+
+		assertEquals(2, serviceCalls.get());
+	}
+
+	@Test
+	void knowledgeChangeInvalidatesEverything() {
+		cache.get(SERVICE_ID, request("123", "instance-1"), service);
+		cache.get(SERVICE_ID, request("456", "instance-1"), service);
+
+		cache.resourceUpdated(new PlanDefinition(), new PlanDefinition());
+		cache.get(SERVICE_ID, request("123", "instance-2"), service);
+		cache.get(SERVICE_ID, request("456", "instance-2"), service);
+
+		assertEquals(4, serviceCalls.get());
+	}
+
+	@Test
+	void knowledgeChangeInvalidatesOnlyAfterCommit() {
+		cache.get(SERVICE_ID, request("123", "instance-1"), service);
+
+		TransactionSynchronizationManager.initSynchronization();
+		try {
+			cache.resourceCreated(new PlanDefinition());
+			cache.get(SERVICE_ID, request("123", "instance-2"), service);
+			assertEquals(1, serviceCalls.get());
+			TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+		} finally {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+		cache.get(SERVICE_ID, request("123", "instance-3"), service);
+
+		assertEquals(2, serviceCalls.get());
+	}
+
+	private static CdsServiceRequestJson request(String thePatientId, String theHookInstance) {
+		CdsServiceRequestJson request = new CdsServiceRequestJson();
+		request.setHook("order-sign");
+		request.setHookInstance(theHookInstance);
+		request.setFhirServer("http://localhost:8080/fhir");
+		request.addContext("userId", "Practitioner/example");
+		request.addContext("patientId", "Patient/" + thePatientId);
+		return request;
+	}
+
+	private static Observation observationFor(String thePatientId) {
+		Observation observation = new Observation();
+		observation.setId("Observation/" + thePatientId + "-obs");
+		observation.setSubject(new Reference("Patient/" + thePatientId));
+		return observation;
+	}
+
+	private static Patient patient(String theId) {
+		Patient patient = new Patient();
+		patient.setId("Patient/" + theId);
+		return patient;
+	}
+}
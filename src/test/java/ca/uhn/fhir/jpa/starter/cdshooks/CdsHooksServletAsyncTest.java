@@ -0,0 +1,131 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.jpa.starter.AppProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CdsHooksServletAsyncTest {
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final CountDownLatch release = new CountDownLatch(1);
+	private CdsHooksAsyncExecutor asyncExecutor;
+	private CdsHooksServlet servlet;
+
+	@BeforeEach
+	void setUp() {
+		CdsHooksProperties cdsHooksProperties = new CdsHooksProperties();
+		CdsHooksAsyncProperties asyncProperties = cdsHooksProperties.getAsync();
+		asyncProperties.setEnabled(true);
+		asyncProperties.setThreads(1);
+		asyncProperties.setQueueDepth(1);
+		asyncProperties.setRejectStatus(429);
+		asyncProperties.setRetryAfterSeconds(7);
+		asyncExecutor = new CdsHooksAsyncExecutor(asyncProperties, meterRegistry);
+
+		servlet = new CdsHooksServlet();
+		ReflectionTestUtils.setField(servlet, "appProperties", new AppProperties());
+		ReflectionTestUtils.setField(servlet, "cdsHooksProperties", cdsHooksProperties);
+		ReflectionTestUtils.setField(servlet, "asyncExecutor", asyncExecutor);
+		ReflectionTestUtils.setField(servlet, "meterRegistry", meterRegistry);
+
+		// Keep the only evaluation thread busy, so that the next request waits in the queue
+		asyncExecutor.submit(this::awaitRelease);
+	}
+
+	@AfterEach
+	void tearDown() {
+		release.countDown();
+		asyncExecutor.shutdown();
+	}
+
+	@Test
+	void rejectsRequestsWhenTheQueueIsFull() throws Exception {
+		asyncExecutor.submit(this::awaitRelease);
+		MockHttpServletRequest request = hookRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		servlet.doPost(request, response);
+
+		assertEquals(429, response.getStatus());
+		assertEquals("7", response.getHeader("Retry-After"));
+		assertTrue(response.getContentAsString().contains("busy"));
+		assertFalse(request.isAsyncStarted());
+		assertEquals(1, meterRegistry.get("cds.hooks.async.rejected").counter().count());
+	}
+
+	@Test
+	void timesOutRequestsStillWaitingForEvaluation() throws Exception {
+		MockHttpServletRequest request = hookRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+
+		servlet.doPost(request, response);
+		assertTrue(request.isAsyncStarted());
+		timeOut(request);
+
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+		assertEquals("7", response.getHeader("Retry-After"));
+		assertTrue(response.getContentAsString().contains("busy"));
+		assertFalse(request.isAsyncStarted());
+
+		// The cancelled evaluation never gets to write a second response
+		release.countDown();
+		await().atMost(5, TimeUnit.SECONDS)
+				.until(() -> meterRegistry.get("cds.hooks.async.queue.depth").gauge().value() == 0);
+		assertTrue(response.getContentAsString().contains("busy"));
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, response.getStatus());
+	}
+
+	@Test
+	void ignoresTimeoutsAfterTheRequestCompleted() throws Exception {
+		MockHttpServletRequest request = hookRequest();
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		asyncExecutor.submit(this::awaitRelease);
+
+		// Rejected and completed; a late timeout must not overwrite the rejection
+		servlet.doPost(request, response);
+		timeOut(request);
+
+		assertEquals(429, response.getStatus());
+	}
+
+	private static MockHttpServletRequest hookRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("POST", "/cds-services/opioidcds-10-order-sign");
+		request.setPathInfo("/opioidcds-10-order-sign");
+		request.setContentType("application/json");
+		request.setContent("{\"hook\":\"order-sign\"}".getBytes());
+		request.setAsyncSupported(true);
+		return request;
+	}
+
+	private static void timeOut(MockHttpServletRequest theRequest) throws Exception {
+		MockAsyncContext asyncContext = (MockAsyncContext) theRequest.getAsyncContext();
+		for (AsyncListener listener : asyncContext.getListeners()) {
+			listener.onTimeout(new AsyncEvent(asyncContext));
+		}
+	}
+
+	private void awaitRelease() {
+		try {
+			release.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package ca.uhn.fhir.jpa.starter.cdshooks;
+
+import ca.uhn.fhir.context.FhirContext;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PrefetchClientCacheTest {
+
+	private static final String METERED = "https://ehr.example.org/fhir";
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private PrefetchClientCache cache;
+
+	@AfterEach
+	void tearDown() {
+		if (cache != null) {
+			cache.closeAll();
+		}
+	}
+
+	@Test
+	void normalizesTheServerBase() {
+		assertEquals("https://ehr.example.org/FHIR", PrefetchClientCache.normalizeBaseUrl(" HTTPS://EHR.example.org/FHIR// "));
+	}
+
+	@Test
+	void sharesOneClientBetweenSpellingsOfTheSameServer() {
+		cache = cache(10);
+
+		try (PrefetchClientCache.Lease first = cache.lease("https://EHR.example.org/fhir/");
+			  PrefetchClientCache.Lease second = cache.lease(METERED)) {
+			assertSame(first.client(), second.client());
+		}
+	}
+
+	@Test
+	void metersOnlyTheConfiguredServersOnTheirOwn() {
+		cache = cache(10);
+
+		cache.lease(METERED).close();
+		cache.lease("https://other-1.example.org/fhir").close();
+		cache.lease("https://other-2.example.org/fhir").close();
+
+		assertNotNull(meterRegistry.find("cds.hooks.prefetch.pool.leased").tag("server", METERED).gauge());
+		assertEquals(1, meterRegistry.find("cds.hooks.prefetch.pool.leased").gauges().size());
+		assertEquals(2, meterRegistry.find("cds.hooks.prefetch.pool.wait").timers().size());
+		assertNotNull(meterRegistry.find("cds.hooks.prefetch.pool.wait")
+				.tag("server", PrefetchClientCache.OTHER_SERVER_TAG)
+				.timer());
+	}
+
+	@Test
+	void removesTheMetersOfAnEvictedClientOnceItsLeasesAreReleased() {
+		cache = cache(1);
+		PrefetchClientCache.Lease lease = cache.lease(METERED);
+
+		// Evicts the metered client while the lease is still in use
+		cache.lease("https://other.example.org/fhir").close();
+		cache.closeAll();
+		await().during(200, TimeUnit.MILLISECONDS)
+				.atMost(5, TimeUnit.SECONDS)
+				.until(() -> meterRegistry.find("cds.hooks.prefetch.pool.leased").tag("server", METERED).gauge() != null);
+
+		lease.close();
+		await().atMost(5, TimeUnit.SECONDS)
+				.until(() -> meterRegistry.find("cds.hooks.prefetch.pool.leased").tag("server", METERED).gauge() == null);
+		assertNull(meterRegistry.find("cds.hooks.prefetch.pool.wait").tag("server", METERED).timer());
+	}
+
+	private PrefetchClientCache cache(int theMaxCachedClients) {
+		CdsHooksPrefetchProperties properties = new CdsHooksPrefetchProperties();
+		properties.setMaxCachedClients(theMaxCachedClients);
+		properties.setMeteredServers(List.of(METERED + "/"));
+		return new PrefetchClientCache(FhirContext.forR4Cached(), properties, meterRegistry);
+	}
+}
@@ -0,0 +1,135 @@
+package ca.uhn.fhir.jpa.starter.common.security;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.jpa.starter.common.security.AuthorizationRuleCompiler.CompiledRuleSet;
+import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.interceptor.auth.AuthorizationInterceptor;
+import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
+import ca.uhn.fhir.rest.server.interceptor.auth.PolicyEnum;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.oauth2.jwt.Jwt;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AuthorizationRuleCompilerTest {
+
+    private final AuthorizationRuleCompiler compiler = new AuthorizationRuleCompiler(100, true);
+    private final AuthorizationRuleCompiler roleOnlyCompiler = new AuthorizationRuleCompiler(100, false);
+    private final RestfulServer restfulServer = new RestfulServer(FhirContext.forR4Cached());
+
+    @Test
+    void clientRoleAllowsEverything() {
+        CompiledRuleSet ruleSet = compiler.compile(jwt(Map.of(
+            "resource_access", Map.of("hapi-fhir", Map.of("roles", List.of(AuthorizationRuleCompiler.ALLOW_ALL_ROLE))))));
+
+        assertTrue(ruleSet.isAllowAll());
+        assertEquals(PolicyEnum.ALLOW, decision(ruleSet, observationFor("123")));
+    }
+
+    @Test
+    void onlyTheClientRoleGrantsAccessByDefault() {
+        assertTrue(roleOnlyCompiler.compile(jwt(Map.of("scope", "system/*.* user/Observation.read"))).isEmpty());
+        assertTrue(roleOnlyCompiler.compile(jwt(Map.of("scope", "patient/*.read", "patient", "123"))).isEmpty());
+
+        CompiledRuleSet ruleSet = roleOnlyCompiler.compile(jwt(Map.of(
+            "scope", "patient/Observation.read",
+            "resource_access", Map.of("hapi-fhir", Map.of("roles", List.of(AuthorizationRuleCompiler.ALLOW_ALL_ROLE))))));
+        assertTrue(ruleSet.isAllowAll());
+        assertEquals(PolicyEnum.ALLOW, decision(ruleSet, patient("456")));
+    }
+
+    @Test
+    void unknownGrantsCompileToAnEmptyRuleSet() {
+        CompiledRuleSet ruleSet = compiler.compile(jwt(Map.of(
+            "scope", "openid profile launch",
+            "resource_access", Map.of("another-client", Map.of("roles", List.of(AuthorizationRuleCompiler.ALLOW_ALL_ROLE))))));
+
+        assertTrue(ruleSet.isEmpty());
+        assertFalse(ruleSet.isAllowAll());
+    }
+
+    @Test
+    void tokensWithTheSameGrantsShareOneRuleSet() {
+        CompiledRuleSet first = compiler.compile(jwt(Map.of("scope", "user/Observation.read user/Patient.read")));
+        CompiledRuleSet second = compiler.compile(jwt(Map.of("scope", "user/Patient.read  user/Observation.read")));
+
+        assertSame(first, second);
+        assertNotSame(first, compiler.compile(jwt(Map.of("scope", "user/Observation.read"))));
+    }
+
+    @Test
+    void typeScopesAllowOnlyTheirType() {
+        CompiledRuleSet ruleSet = compiler.compile(jwt(Map.of("scope", "system/Observation.rs")));
+
+        assertFalse(ruleSet.isEmpty());
+        assertFalse(ruleSet.isAllowAll());
+        assertEquals(PolicyEnum.ALLOW, decision(ruleSet, observationFor("123")));
+        assertEquals(PolicyEnum.DENY, decision(ruleSet, patient("123")));
+    }
+
+    @Test
+    void patientScopesNeedAPatientClaim() {
+        assertTrue(compiler.compile(jwt(Map.of("scope", "patient/Observation.read"))).isEmpty());
+    }
+
+    @Test
+    void patientScopesAllowOnlyThePatientsCompartment() {
+        CompiledRuleSet ruleSet = compiler.compile(jwt(Map.of("scope", "patient/*.read", "patient", "123")));
+
+        assertEquals(PolicyEnum.ALLOW, decision(ruleSet, observationFor("123")));
+        assertEquals(PolicyEnum.DENY, decision(ruleSet, observationFor("456")));
+        assertNotSame(ruleSet, compiler.compile(jwt(Map.of("scope", "patient/*.read", "patient", "456"))));
+    }
+
+    private PolicyEnum decision(CompiledRuleSet ruleSet, IBaseResource resource) {
+        AuthorizationInterceptor authorization = new AuthorizationInterceptor(PolicyEnum.DENY) {
+            @Override
+            public List<IAuthRule> buildRuleList(RequestDetails theRequestDetails) {
+                return ruleSet.getRules();
+            }
+        };
+        ServletRequestDetails requestDetails = new ServletRequestDetails();
+        requestDetails.setServer(restfulServer);
+        AuthorizationInterceptor.Verdict verdict = authorization.applyRulesAndReturnDecision(
+            RestOperationTypeEnum.READ, requestDetails, null, null, resource, Pointcut.STORAGE_PRESHOW_RESOURCES);
+        return verdict.getDecision();
+    }
+
+    private static Jwt jwt(Map<String, Object> claims) {
+        return Jwt.withTokenValue("token")
+            .header("alg", "RS256")
+            .subject("client")
+            .expiresAt(Instant.now().plusSeconds(300))
+            .claims(existing -> existing.putAll(claims))
+            .build();
+    }
+
+    private static Observation observationFor(String patientId) {
+        Observation observation = new Observation();
+        observation.setId("Observation/" + patientId + "-obs");
+        observation.setSubject(new Reference("Patient/" + patientId));
+        return observation;
+    }
+
+    private static Patient patient(String id) {
+        Patient patient = new Patient();
+        patient.setId("Patient/" + id);
+        return patient;
+    }
+}
@@ -0,0 +1,113 @@
+package ca.uhn.fhir.jpa.starter.common.security;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.jwt.BadJwtException;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class VerifiedJwtCacheTest {
+
+    private static final String TOKEN = "header.payload.signature";
+
+    private final JwtDecoder jwtDecoder = mock(JwtDecoder.class);
+    private final VerifiedJwtCache cache = new VerifiedJwtCache(jwtDecoder, 100, 100, 30);
+
+    @AfterEach
+    void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void decodesEachTokenOnce() {
+        Jwt jwt = jwt(TOKEN, Instant.now().plusSeconds(300));
+        when(jwtDecoder.decode(TOKEN)).thenReturn(jwt);
+
+        assertSame(jwt, cache.decode(TOKEN));
+        assertSame(jwt, cache.decode(TOKEN));
+
+        verify(jwtDecoder, times(1)).decode(TOKEN);
+    }
+
+    @Test
+    void doesNotKeepTokensWithoutExpiry() {
+        Jwt jwt = jwt(TOKEN, null);
+        when(jwtDecoder.decode(TOKEN)).thenReturn(jwt);
+
+        cache.decode(TOKEN);
+        cache.decode(TOKEN);
+
+        verify(jwtDecoder, times(2)).decode(TOKEN);
+    }
+
+    @Test
+    void remembersInvalidTokens() {
+        when(jwtDecoder.decode(TOKEN)).thenThrow(new BadJwtException("Signature mismatch"));
+
+        assertThrows(BadJwtException.class, () -> cache.decode(TOKEN));
+        assertThrows(JwtException.class, () -> cache.decode(TOKEN));
+
+        verify(jwtDecoder, times(1)).decode(TOKEN);
+    }
+
+    @Test
+    void doesNotRememberFailuresUnrelatedToTheToken() {
+        when(jwtDecoder.decode(TOKEN)).thenThrow(new JwtException("Unable to retrieve the JWK set"));
+
+        assertThrows(JwtException.class, () -> cache.decode(TOKEN));
+        assertThrows(JwtException.class, () -> cache.decode(TOKEN));
+
+        verify(jwtDecoder, times(2)).decode(TOKEN);
+    }
+
+    @Test
+    void reusesTheTokenOfTheSecurityContext() {
+        Jwt jwt = jwt(TOKEN, Instant.now().plusSeconds(300));
+        SecurityContextHolder.getContext().setAuthentication(new JwtAuthenticationToken(jwt));
+
+        assertSame(jwt, cache.decode(TOKEN));
+
+        verify(jwtDecoder, never()).decode(anyString());
+    }
+
+    @Test
+    void invalidateAllForgetsEverything() {
+        Jwt jwt = jwt(TOKEN, Instant.now().plusSeconds(300));
+        when(jwtDecoder.decode(TOKEN)).thenReturn(jwt);
+        when(jwtDecoder.decode("rejected")).thenThrow(new BadJwtException("Expired"));
+        cache.decode(TOKEN);
+        assertThrows(BadJwtException.class, () -> cache.decode("rejected"));
+
+        cache.invalidateAll();
+        cache.decode(TOKEN);
+        assertThrows(BadJwtException.class, () -> cache.decode("rejected"));
+
+        verify(jwtDecoder, times(2)).decode(TOKEN);
+        verify(jwtDecoder, times(2)).decode("rejected");
+    }
+
+    private static Jwt jwt(String tokenValue, Instant expiresAt) {
+        Jwt.Builder builder = Jwt.withTokenValue(tokenValue)
+            .header("alg", "RS256")
+            .subject("client")
+            .issuedAt(Instant.now().minusSeconds(10));
+        if (expiresAt != null) {
+            builder.expiresAt(expiresAt);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,118 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CodeSetCacheTest {
+
+	private static final String URL = "http://example.org/ValueSet/lab-panel";
+	private static final List<Code> CODES = List.of(new Code().withSystem("http://loinc.org").withCode("2339-0"));
+
+	@Test
+	void storesExpansions() {
+		CodeSetCache cache = new CodeSetCache();
+
+		cache.put(URL, CODES);
+
+		assertSame(CODES, cache.get(URL));
+		assertTrue(cache.containsKey(URL));
+	}
+
+	@Test
+	void answersMissesFromTheStore() {
+		ValueSetExpansionStore store = mock(ValueSetExpansionStore.class);
+		when(store.lookup(URL)).thenReturn(new ValueSetExpansionStore.Lookup(CODES, inputs("current")));
+		CodeSetCache cache = new CodeSetCache(store);
+
+		List<Code> codes = cache.get(URL);
+
+		assertSame(CODES, codes);
+		assertSame(codes, cache.get(URL));
+		verify(store, times(1)).lookup(URL);
+	}
+
+	@Test
+	void persistsExpansionsWithTheInputsOfTheMiss() {
+		ValueSetExpansionStore store = mock(ValueSetExpansionStore.class);
+		ValueSetExpansionStore.Inputs inputs = inputs("before-expansion");
+		when(store.lookup(URL)).thenReturn(new ValueSetExpansionStore.Lookup(null, inputs));
+		CodeSetCache cache = new CodeSetCache(store);
+
+		assertNull(cache.get(URL));
+		cache.put(URL, CODES);
+
+		verify(store).store(eq(URL), any(), eq(inputs));
+	}
+
+	@Test
+	void looksAMissUpOnceForContainsKeyAndGet() {
+		ValueSetExpansionStore store = mock(ValueSetExpansionStore.class);
+		ValueSetExpansionStore.Inputs inputs = inputs("before-expansion");
+		when(store.lookup(URL)).thenReturn(new ValueSetExpansionStore.Lookup(null, inputs));
+		CodeSetCache cache = new CodeSetCache(store);
+
+		assertFalse(cache.containsKey(URL));
+		assertNull(cache.get(URL));
+		cache.put(URL, CODES);
+
+		verify(store, times(1)).lookup(URL);
+		verify(store, times(1)).store(eq(URL), any(), eq(inputs));
+	}
+
+	@Test
+	void endsTheAttemptWithThePutOfTheExpansion() {
+		ValueSetExpansionStore store = mock(ValueSetExpansionStore.class);
+		when(store.lookup(URL)).thenReturn(new ValueSetExpansionStore.Lookup(null, inputs("before-expansion")));
+		CodeSetCache cache = new CodeSetCache(store);
+
+		cache.get(URL);
+		cache.put(URL, CODES);
+		cache.remove(URL);
+		cache.put(URL, CODES);
+
+		verify(store, times(1)).store(anyString(), any(), any());
+	}
+
+	@Test
+	void doesNotPersistExpansionsWithoutAMiss() {
+		ValueSetExpansionStore store = mock(ValueSetExpansionStore.class);
+		CodeSetCache cache = new CodeSetCache(store);
+
+		cache.put(URL, CODES);
+
+		verify(store, never()).store(anyString(), any(), any());
+	}
+
+	@Test
+	void removeOnlyDropsTheEntryFromMemory() {
+		ValueSetExpansionStore store = mock(ValueSetExpansionStore.class);
+		when(store.lookup(URL)).thenReturn(new ValueSetExpansionStore.Lookup(CODES, inputs("current")));
+		CodeSetCache cache = new CodeSetCache(store);
+		cache.get(URL);
+
+		cache.remove(URL);
+
+		assertEquals(0, cache.size());
+		verify(store, never()).store(anyString(), any(), any());
+	}
+
+	private static ValueSetExpansionStore.Inputs inputs(String theHash) {
+		return new ValueSetExpansionStore.Inputs(theHash, List.of("http://loinc.org"));
+	}
+}
@@ -0,0 +1,128 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CohortRetrieveRepositoryTest {
+
+	private final FhirContext fhirContext = FhirContext.forR4Cached();
+	private final DaoRegistry daoRegistry = mock(DaoRegistry.class);
+	private final CohortRetrieveCache cohort = new CohortRetrieveCache(List.of("1", "2"));
+	private IFhirResourceDao<Observation> observationDao;
+	private CohortRetrieveRepository repository;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void setUp() {
+		observationDao = mock(IFhirResourceDao.class);
+		when(daoRegistry.getFhirContext()).thenReturn(fhirContext);
+		doReturn(observationDao).when(daoRegistry).getResourceDao("Observation");
+		doReturn(observationDao).when(daoRegistry).getResourceDao(Observation.class);
+		repository = new CohortRetrieveRepository(daoRegistry, new SystemRequestDetails(), new RestfulServer(fhirContext));
+	}
+
+	@Test
+	void attributesTheCohortLoadToSubjectsThroughTheSearchParameterPath() {
+		bulkLoadReturns(List.of(observation("a", "Patient/1"), observation("b", "Patient/2"), observation("c", "Patient/1")));
+
+		Bundle first = cohort.evaluate(() -> searchByPatient("1"));
+		Bundle second = cohort.evaluate(() -> searchByPatient("2"));
+
+		assertEquals(List.of("a", "c"), ids(first));
+		assertEquals(List.of("b"), ids(second));
+		verify(observationDao, times(1)).search(any(SearchParameterMap.class), any(RequestDetails.class));
+	}
+
+	@Test
+	void searchesPerSubjectWhenTheCohortLoadExceedsTheLimit() {
+		List<IBaseResource> tooMany = new ArrayList<>();
+		for (int i = 0; i <= 10_000; i++) {
+			tooMany.add(observation(String.valueOf(i), i % 2 == 0 ? "Patient/1" : "Patient/2"));
+		}
+		bulkLoadReturns(tooMany);
+
+		cohort.evaluate(() -> searchByPatient("1"));
+		cohort.evaluate(() -> searchByPatient("2"));
+
+		// One cohort-wide load, then every subject is searched on its own
+		verify(observationDao, times(1)).search(argThat(CohortRetrieveRepositoryTest::isCohortLoad), any(RequestDetails.class));
+		verify(observationDao, times(3)).search(any(SearchParameterMap.class), any(RequestDetails.class));
+	}
+
+	@Test
+	void searchesPerSubjectWhenAResourceCannotBeAttributed() {
+		Observation unattributed = new Observation();
+		unattributed.setId("Observation/x");
+		bulkLoadReturns(List.of(observation("a", "Patient/1"), unattributed));
+
+		assertNull(cohort.evaluate(() -> searchByPatient("1")));
+		verify(observationDao, times(2)).search(any(SearchParameterMap.class), any(RequestDetails.class));
+	}
+
+	@Test
+	void leavesSearchesOutsideOfACohortAlone() {
+		assertNull(searchByPatient("1"));
+
+		verify(observationDao, never()).search(argThat(CohortRetrieveRepositoryTest::isCohortLoad), any(RequestDetails.class));
+	}
+
+	private void bulkLoadReturns(List<IBaseResource> theResources) {
+		// The per-subject searches of the fallback find nothing, which the repository hands back as null
+		when(observationDao.search(argThat(CohortRetrieveRepositoryTest::isCohortLoad), any(RequestDetails.class)))
+				.thenReturn(new SimpleBundleProvider(theResources));
+	}
+
+	private Bundle searchByPatient(String theSubjectId) {
+		Map<String, List<IQueryParameterType>> parameters =
+				Map.of("patient", List.of(new ReferenceParam("Patient/" + theSubjectId)));
+		return repository.search(Bundle.class, Observation.class, parameters, null);
+	}
+
+	private static boolean isCohortLoad(SearchParameterMap theSearchParameterMap) {
+		return theSearchParameterMap != null
+				&& theSearchParameterMap.getLoadSynchronousUpTo() != null
+				&& theSearchParameterMap.getLoadSynchronousUpTo() > 10_000;
+	}
+
+	private static Observation observation(String theId, String theSubject) {
+		Observation observation = new Observation();
+		observation.setId("Observation/" + theId);
+		observation.setSubject(new Reference(theSubject));
+		return observation;
+	}
+
+	private static List<String> ids(Bundle theBundle) {
+		return theBundle.getEntry().stream()
+				.map(entry -> entry.getResource().getIdElement().getIdPart())
+				.toList();
+	}
+}
@@ -0,0 +1,110 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import org.cqframework.cql.cql2elm.model.CompiledLibrary;
+import org.hl7.elm.r1.IncludeDef;
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CrCacheInvalidationInterceptorTest {
+
+	private final Map<VersionedIdentifier, CompiledLibrary> libraryCache = new ConcurrentHashMap<>();
+	private final Map<String, List<Code>> valueSetCache = new ConcurrentHashMap<>();
+	private final CrCacheInvalidationInterceptor interceptor =
+			new CrCacheInvalidationInterceptor(FhirContext.forR4Cached(), libraryCache, valueSetCache);
+
+	@AfterEach
+	void tearDown() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.clearSynchronization();
+		}
+	}
+
+	@Test
+	void evictsEveryVersionOfAChangedLibraryAndWhatIncludesItTransitively() {
+		VersionedIdentifier common1 = cache("Common", "1.0.0");
+		VersionedIdentifier common2 = cache("Common", "2.0.0");
+		VersionedIdentifier helpers = cache("Helpers", "1.0.0", "Common");
+		VersionedIdentifier measure = cache("Measure", "1.0.0", "example.Helpers");
+		VersionedIdentifier unrelated = cache("Unrelated", "1.0.0", "FHIRHelpers");
+
+		interceptor.resourceUpdated(library("Common"), library("Common"));
+
+		assertFalse(libraryCache.containsKey(common1));
+		assertFalse(libraryCache.containsKey(common2));
+		assertFalse(libraryCache.containsKey(helpers));
+		assertFalse(libraryCache.containsKey(measure));
+		assertTrue(libraryCache.containsKey(unrelated));
+	}
+
+	@Test
+	void terminatesOnCircularIncludes() {
+		cache("A", "1.0.0", "B");
+		cache("B", "1.0.0", "A");
+
+		interceptor.resourceDeleted(library("A"));
+
+		assertTrue(libraryCache.isEmpty());
+	}
+
+	@Test
+	void evictsBothKeysOfAChangedValueSet() {
+		List<Code> codes = List.of(new Code().withSystem("http://loinc.org").withCode("2339-0"));
+		valueSetCache.put("http://example.org/ValueSet/labs", codes);
+		valueSetCache.put("http://example.org/ValueSet/labs|1", codes);
+		valueSetCache.put("http://example.org/ValueSet/other", codes);
+
+		interceptor.resourceCreated(
+				new ValueSet().setUrl("http://example.org/ValueSet/labs").setVersion("1"));
+
+		assertEquals(1, valueSetCache.size());
+		assertTrue(valueSetCache.containsKey("http://example.org/ValueSet/other"));
+	}
+
+	@Test
+	void evictsOnlyOnceTheTransactionCommits() {
+		VersionedIdentifier common = cache("Common", "1.0.0");
+		TransactionSynchronizationManager.initSynchronization();
+
+		interceptor.resourceCreated(library("Common"));
+		assertTrue(libraryCache.containsKey(common));
+
+		TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+		assertFalse(libraryCache.containsKey(common));
+	}
+
+	private VersionedIdentifier cache(String theName, String theVersion, String... theIncludes) {
+		VersionedIdentifier identifier = new VersionedIdentifier().withId(theName).withVersion(theVersion);
+		org.hl7.elm.r1.Library elm = new org.hl7.elm.r1.Library().withIdentifier(identifier);
+		if (theIncludes.length > 0) {
+			org.hl7.elm.r1.Library.Includes includes = new org.hl7.elm.r1.Library.Includes();
+			for (String include : theIncludes) {
+				includes.getDef().add(new IncludeDef().withPath(include));
+			}
+			elm.setIncludes(includes);
+		}
+		CompiledLibrary compiled = new CompiledLibrary();
+		compiled.setIdentifier(identifier);
+		compiled.setLibrary(elm);
+		libraryCache.put(identifier, compiled);
+		return identifier;
+	}
+
+	private static Library library(String theName) {
+		return new Library().setName(theName);
+	}
+}
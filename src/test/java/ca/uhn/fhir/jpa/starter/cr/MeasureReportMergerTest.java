@@ -0,0 +1,184 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class MeasureReportMergerTest {
+
+	private static final String POPULATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-population";
+	private static final String SCORING_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-scoring";
+	private static final String SDE_EXTENSION =
+			"http://hl7.org/fhir/5.0/StructureDefinition/extension-MeasureReport.supplementalDataElement.reference";
+
+	@Test
+	void mergesCohortCounts() {
+		MeasureReport summary = MeasureReportMerger.merge(null, subjectReport("1", "initial-population", 1));
+		summary = MeasureReportMerger.merge(summary, subjectReport("2", "initial-population", 1));
+		summary = MeasureReportMerger.merge(summary, subjectReport("3", "initial-population", 0));
+		MeasureReportMerger.score(summary, measure("cohort"));
+
+		assertEquals(MeasureReport.MeasureReportType.SUMMARY, summary.getType());
+		assertFalse(summary.hasSubject());
+		assertFalse(summary.hasEvaluatedResource());
+		assertEquals(2, count(summary.getGroupFirstRep(), "initial-population"));
+		assertFalse(summary.getGroupFirstRep().hasMeasureScore());
+	}
+
+	@Test
+	void dropsTheDataOfTheFirstSubject() {
+		MeasureReport first = subjectReport("1", "numerator", 1, "denominator", 1);
+		first.getGroupFirstRep().setMeasureScore(new Quantity(1));
+		first.getGroupFirstRep().getPopulationFirstRep().setSubjectResults(new Reference("List/subject-1"));
+		first.getGroupFirstRep().addStratifier(stratifier("male", "numerator", 1));
+		first.getGroupFirstRep().getStratifierFirstRep().getStratumFirstRep().setMeasureScore(new Quantity(1));
+		first.getGroupFirstRep().getStratifierFirstRep().getStratumFirstRep().getPopulationFirstRep()
+				.setSubjectResults(new Reference("List/stratum-1"));
+
+		MeasureReport summary = MeasureReportMerger.merge(null, first);
+
+		MeasureReport.MeasureReportGroupComponent group = summary.getGroupFirstRep();
+		assertFalse(group.hasMeasureScore());
+		assertFalse(group.getPopulationFirstRep().hasSubjectResults());
+		MeasureReport.StratifierGroupComponent stratum = group.getStratifierFirstRep().getStratumFirstRep();
+		assertFalse(stratum.hasMeasureScore());
+		assertFalse(stratum.getPopulationFirstRep().hasSubjectResults());
+	}
+
+	@Test
+	void dropsSupplementalDataReferencingContainedResources() {
+		MeasureReport first = subjectReport("1", "initial-population", 1);
+		first.addContained(new Observation().setId("sde-1"));
+		first.addExtension(SDE_EXTENSION, new Reference("#sde-1"));
+		first.addExtension(SDE_EXTENSION, new Reference("Observation/shared"));
+
+		MeasureReport summary = MeasureReportMerger.merge(null, first);
+
+		assertFalse(summary.hasContained());
+		assertEquals(1, summary.getExtensionsByUrl(SDE_EXTENSION).size());
+		assertEquals("Observation/shared", ((Reference) summary.getExtensionByUrl(SDE_EXTENSION).getValue()).getReference());
+	}
+
+	@Test
+	void scoresProportionsWithoutExclusionsAndExceptions() {
+		MeasureReport summary = MeasureReportMerger.merge(null, subjectReport(
+				"1", "numerator", 3, "numerator-exclusion", 1, "denominator", 8, "denominator-exclusion", 2,
+				"denominator-exception", 2));
+		MeasureReportMerger.score(summary, measure("proportion"));
+
+		// (3 - 1) / (8 - 2 - 2)
+		assertEquals(0, new BigDecimal("0.5").compareTo(summary.getGroupFirstRep().getMeasureScore().getValue()));
+	}
+
+	@Test
+	void scoresRatiosWithoutDenominatorExceptions() {
+		MeasureReport summary = MeasureReportMerger.merge(null, subjectReport(
+				"1", "numerator", 2, "numerator-exclusion", 1, "denominator", 3, "denominator-exclusion", 1));
+		summary = MeasureReportMerger.merge(summary, subjectReport(
+				"2", "numerator", 2, "denominator", 3, "denominator-exception", 2));
+		MeasureReportMerger.score(summary, measure("ratio"));
+
+		// (4 - 1) / (6 - 1); a proportion would also have subtracted the 2 exceptions
+		assertEquals(0, new BigDecimal("0.6").compareTo(summary.getGroupFirstRep().getMeasureScore().getValue()));
+	}
+
+	@Test
+	void leavesEmptyDenominatorsUnscored() {
+		MeasureReport summary = MeasureReportMerger.merge(null, subjectReport("1", "numerator", 0, "denominator", 0));
+		MeasureReportMerger.score(summary, measure("proportion"));
+
+		assertFalse(summary.getGroupFirstRep().hasMeasureScore());
+	}
+
+	@Test
+	void mergesStrataByValue() {
+		MeasureReport first = subjectReport("1", "numerator", 1, "denominator", 1);
+		first.getGroupFirstRep().addStratifier(stratifier("male", "numerator", 1, "denominator", 1));
+		MeasureReport second = subjectReport("2", "numerator", 0, "denominator", 1);
+		second.getGroupFirstRep().addStratifier(stratifier("female", "numerator", 0, "denominator", 1));
+		MeasureReport third = subjectReport("3", "numerator", 0, "denominator", 1);
+		third.getGroupFirstRep().addStratifier(stratifier("male", "numerator", 0, "denominator", 1));
+
+		MeasureReport summary = MeasureReportMerger.merge(null, first);
+		summary = MeasureReportMerger.merge(summary, second);
+		assertSame(summary, MeasureReportMerger.merge(summary, third));
+		MeasureReportMerger.score(summary, measure("proportion"));
+
+		MeasureReport.MeasureReportGroupComponent group = summary.getGroupFirstRep();
+		assertEquals(1, group.getStratifier().size());
+		assertEquals(2, group.getStratifierFirstRep().getStratum().size());
+		MeasureReport.StratifierGroupComponent male = stratum(group, "male");
+		assertEquals(1, count(male, "numerator"));
+		assertEquals(2, count(male, "denominator"));
+		assertEquals(0, new BigDecimal("0.5").compareTo(male.getMeasureScore().getValue()));
+		MeasureReport.StratifierGroupComponent female = stratum(group, "female");
+		assertEquals(1, count(female, "denominator"));
+		assertEquals(0, BigDecimal.ZERO.compareTo(female.getMeasureScore().getValue()));
+		assertEquals(0, new BigDecimal("0.3333333333333333").compareTo(group.getMeasureScore().getValue()));
+	}
+
+	private static MeasureReport subjectReport(String theSubject, Object... thePopulations) {
+		MeasureReport report = new MeasureReport();
+		report.setId("MeasureReport/" + theSubject);
+		report.setType(MeasureReport.MeasureReportType.INDIVIDUAL);
+		report.setSubject(new Reference("Patient/" + theSubject));
+		report.addEvaluatedResource(new Reference("Encounter/" + theSubject));
+		MeasureReport.MeasureReportGroupComponent group = report.addGroup();
+		group.setId("group-1");
+		for (int i = 0; i < thePopulations.length; i += 2) {
+			group.addPopulation().setCode(populationCode((String) thePopulations[i])).setCount((Integer) thePopulations[i + 1]);
+		}
+		return report;
+	}
+
+	private static MeasureReport.MeasureReportGroupStratifierComponent stratifier(String theValue, Object... thePopulations) {
+		MeasureReport.MeasureReportGroupStratifierComponent stratifier = new MeasureReport.MeasureReportGroupStratifierComponent();
+		stratifier.addCode().setText("gender");
+		MeasureReport.StratifierGroupComponent stratum = stratifier.addStratum();
+		stratum.setValue(new CodeableConcept().setText(theValue));
+		for (int i = 0; i < thePopulations.length; i += 2) {
+			stratum.addPopulation().setCode(populationCode((String) thePopulations[i])).setCount((Integer) thePopulations[i + 1]);
+		}
+		return stratifier;
+	}
+
+	private static CodeableConcept populationCode(String theCode) {
+		return new CodeableConcept(new Coding(POPULATION_SYSTEM, theCode, null));
+	}
+
+	private static Measure measure(String theScoring) {
+		return new Measure().setScoring(new CodeableConcept(new Coding(SCORING_SYSTEM, theScoring, null)));
+	}
+
+	private static int count(MeasureReport.MeasureReportGroupComponent theGroup, String thePopulation) {
+		return theGroup.getPopulation().stream()
+				.filter(population -> thePopulation.equals(population.getCode().getCodingFirstRep().getCode()))
+				.mapToInt(MeasureReport.MeasureReportGroupPopulationComponent::getCount)
+				.sum();
+	}
+
+	private static int count(MeasureReport.StratifierGroupComponent theStratum, String thePopulation) {
+		return theStratum.getPopulation().stream()
+				.filter(population -> thePopulation.equals(population.getCode().getCodingFirstRep().getCode()))
+				.mapToInt(MeasureReport.StratifierGroupPopulationComponent::getCount)
+				.sum();
+	}
+
+	private static MeasureReport.StratifierGroupComponent stratum(MeasureReport.MeasureReportGroupComponent theGroup, String theValue) {
+		return theGroup.getStratifierFirstRep().getStratum().stream()
+				.filter(stratum -> theValue.equals(stratum.getValue().getText()))
+				.findFirst()
+				.orElseThrow();
+	}
+}
@@ -0,0 +1,166 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.cr.measure.MeasureEvaluationOptions;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ParallelMeasureEvaluationProviderTest {
+
+	private static final String POPULATION_SYSTEM = "http://terminology.hl7.org/CodeSystem/measure-population";
+
+	private final DaoRegistry daoRegistry = mock(DaoRegistry.class);
+	private final RestfulServer restfulServer = new RestfulServer(FhirContext.forR4Cached());
+	private final List<RequestDetails> chunkRequestDetails = Collections.synchronizedList(new ArrayList<>());
+	private final List<List<String>> chunkSubjects = Collections.synchronizedList(new ArrayList<>());
+	private ExecutorService executor;
+	private ParallelMeasureEvaluationProvider provider;
+
+	@BeforeEach
+	@SuppressWarnings("unchecked")
+	void setUp() {
+		executor = Executors.newFixedThreadPool(2);
+		Measure measure = new Measure();
+		measure.setUrl("http://example.org/Measure/cohort");
+		measure.setScoring(new CodeableConcept(new Coding(
+				"http://terminology.hl7.org/CodeSystem/measure-scoring", "cohort", null)));
+		IFhirResourceDao<Measure> measureDao = mock(IFhirResourceDao.class);
+		when(measureDao.read(any(IdType.class), any(RequestDetails.class))).thenReturn(measure);
+		doReturn(measureDao).when(daoRegistry).getResourceDao("Measure");
+
+		Group group = new Group();
+		for (int i = 1; i <= 5; i++) {
+			group.addMember().setEntity(new Reference("Patient/" + i));
+		}
+		group.addMember().setEntity(new Reference("Patient/inactive")).setInactive(true);
+		IFhirResourceDao<Group> groupDao = mock(IFhirResourceDao.class);
+		when(groupDao.read(any(IdType.class), any(RequestDetails.class))).thenReturn(group);
+		doReturn(groupDao).when(daoRegistry).getResourceDao("Group");
+
+		provider = new ParallelMeasureEvaluationProvider(
+				daoRegistry, restfulServer, executor, new MeasureEvaluationProperties(), new MeasureEvaluationOptions()) {
+			@Override
+			MeasureReport evaluateChunk(
+					RequestDetails theRequestDetails,
+					Measure theMeasure,
+					String thePeriodStart,
+					String thePeriodEnd,
+					List<String> theSubjects) {
+				chunkRequestDetails.add(theRequestDetails);
+				chunkSubjects.add(theSubjects);
+				return populationReport(theSubjects.size());
+			}
+		};
+	}
+
+	@AfterEach
+	void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void mergesTheReportsOfEveryChunk() {
+		MeasureReport report = provider.evaluatePopulation(
+				new IdType("Measure/cohort"), "2024-01-01", "2024-12-31", "Group/g", new IntegerType(2), servletRequest());
+
+		assertEquals(3, chunkSubjects.size());
+		assertEquals(5, chunkSubjects.stream().mapToInt(List::size).sum());
+		assertEquals(MeasureReport.MeasureReportType.SUMMARY, report.getType());
+		assertEquals("Group/g", report.getSubject().getReference());
+		assertEquals(5, report.getGroupFirstRep().getPopulationFirstRep().getCount());
+	}
+
+	@Test
+	void evaluatesEveryChunkWithRequestDetailsOfItsOwn() {
+		ServletRequestDetails caller = servletRequest();
+		caller.getUserData().put("caller", "value");
+
+		provider.evaluatePopulation(new IdType("Measure/cohort"), null, null, "Group/g", new IntegerType(2), caller);
+
+		assertEquals(3, chunkRequestDetails.size());
+		for (RequestDetails details : chunkRequestDetails) {
+			assertNotSame(caller, details);
+			assertFalse(details.getUserData().containsKey("caller"));
+			assertEquals("Bearer token", details.getHeader("Authorization"));
+			assertEquals("tenant", details.getTenantId());
+			assertSame(restfulServer, details.getServer());
+		}
+		assertNotSame(chunkRequestDetails.get(0).getUserData(), chunkRequestDetails.get(1).getUserData());
+	}
+
+	@Test
+	void reportsAnEmptyPopulationWithoutEvaluating() {
+		Group empty = new Group();
+		@SuppressWarnings("unchecked")
+		IFhirResourceDao<Group> groupDao = mock(IFhirResourceDao.class);
+		when(groupDao.read(any(IdType.class), any(RequestDetails.class))).thenReturn(empty);
+		doReturn(groupDao).when(daoRegistry).getResourceDao("Group");
+
+		MeasureReport report = provider.evaluatePopulation(
+				new IdType("Measure/cohort"), "2024-01-01", "2024-12-31", "Group/empty", null, servletRequest());
+
+		assertTrue(chunkSubjects.isEmpty());
+		assertEquals(MeasureReport.MeasureReportType.SUMMARY, report.getType());
+		assertEquals("http://example.org/Measure/cohort", report.getMeasure());
+		assertEquals("Group/empty", report.getSubject().getReference());
+	}
+
+	@Test
+	void rejectsNonPositiveChunkSizes() {
+		assertThrows(InvalidRequestException.class, () -> provider.evaluatePopulation(
+				new IdType("Measure/cohort"), null, null, "Group/g", new IntegerType(0), servletRequest()));
+	}
+
+	private ServletRequestDetails servletRequest() {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", "/fhir/Measure/cohort/$evaluate-measure-population");
+		request.addHeader("Authorization", "Bearer token");
+		ServletRequestDetails details = new ServletRequestDetails();
+		details.setServer(restfulServer);
+		details.setServletRequest(request);
+		details.setTenantId("tenant");
+		return details;
+	}
+
+	private static MeasureReport populationReport(int theCount) {
+		MeasureReport report = new MeasureReport();
+		report.setType(MeasureReport.MeasureReportType.SUMMARY);
+		report.addGroup()
+				.addPopulation()
+				.setCode(new CodeableConcept(new Coding(POPULATION_SYSTEM, "initial-population", null)))
+				.setCount(theCount);
+		return report;
+	}
+}
@@ -0,0 +1,145 @@
+package ca.uhn.fhir.jpa.starter.cr;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.api.server.SystemRequestDetails;
+import ca.uhn.fhir.rest.server.RestfulServer;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencds.cqf.fhir.api.Repository;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StreamingCareGapsProviderTest {
+
+	private final FhirContext fhirContext = FhirContext.forR4Cached();
+	private final DaoRegistry daoRegistry = mock(DaoRegistry.class);
+	private final CareGapsProperties properties = new CareGapsProperties();
+	private final MockHttpServletResponse servletResponse = new MockHttpServletResponse();
+	private ExecutorService executor;
+	private String failingSubject;
+	private StreamingCareGapsProvider provider;
+
+	@BeforeEach
+	void setUp() {
+		executor = Executors.newFixedThreadPool(2);
+		provider = new StreamingCareGapsProvider(daoRegistry, new RestfulServer(fhirContext), executor, properties) {
+			@Override
+			Parameters evaluateChunk(Repository theRepository, Parameters theTemplate, List<String> theSubjects) {
+				Parameters results = new Parameters();
+				for (String subject : theSubjects) {
+					if (subject.equals(failingSubject)) {
+						throw new IllegalStateException("Unable to evaluate " + subject);
+					}
+					Bundle document = new Bundle();
+					document.setId(new IdType("Bundle", subject.replace("Patient/", "")));
+					results.addParameter().setName("return").setResource(document);
+				}
+				return results;
+			}
+		};
+	}
+
+	@AfterEach
+	void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	void streamsTheDocumentsOfEverySubjectInOrder() throws Exception {
+		group("Patient/1", "Patient/2", "Patient/3");
+		properties.setChunk_size(2);
+
+		careGaps();
+
+		assertEquals(200, servletResponse.getStatus());
+		assertTrue(servletResponse.getContentType().startsWith("application/fhir+json"));
+		Parameters response = response();
+		assertEquals(3, response.getParameter().size());
+		for (int i = 0; i < 3; i++) {
+			Parameters.ParametersParameterComponent parameter = response.getParameter().get(i);
+			assertEquals("return", parameter.getName());
+			assertEquals(String.valueOf(i + 1), parameter.getResource().getIdElement().getIdPart());
+		}
+	}
+
+	@Test
+	void writesAnEmptyParametersForAnEmptyPopulation() throws Exception {
+		group();
+
+		careGaps();
+
+		assertEquals(200, servletResponse.getStatus());
+		assertTrue(response().getParameter().isEmpty());
+	}
+
+	@Test
+	void reportsAFailureAfterTheFirstChunkAsAFinalErrorParameter() throws Exception {
+		group("Patient/1", "Patient/2", "Patient/3");
+		properties.setChunk_size(1);
+		properties.setChunks_in_flight(1);
+		failingSubject = "Patient/3";
+
+		careGaps();
+
+		assertEquals(200, servletResponse.getStatus());
+		List<Parameters.ParametersParameterComponent> parameters = response().getParameter();
+		assertEquals(
+				List.of("return", "return", "error"),
+				parameters.stream().map(Parameters.ParametersParameterComponent::getName).toList());
+		OperationOutcome outcome = assertInstanceOf(OperationOutcome.class, parameters.get(2).getResource());
+		assertTrue(outcome.getIssueFirstRep().getDiagnostics().contains("Patient/3"));
+	}
+
+	@Test
+	void failsTheRequestWhenNothingWasWrittenYet() {
+		group("Patient/1");
+		failingSubject = "Patient/1";
+
+		assertThrows(InternalErrorException.class, this::careGaps);
+		assertEquals(0, servletResponse.getContentAsByteArray().length);
+	}
+
+	private void careGaps() throws Exception {
+		provider.careGapsStream(
+				"2024-01-01", "2024-12-31", "Group/g", List.of("open-gap"), List.of("m"), null, null,
+				new SystemRequestDetails(), servletResponse);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void group(String... theMembers) {
+		Group group = new Group();
+		for (String member : theMembers) {
+			group.addMember().setEntity(new Reference(member));
+		}
+		IFhirResourceDao<Group> groupDao = mock(IFhirResourceDao.class);
+		when(groupDao.read(any(IdType.class), any(RequestDetails.class))).thenReturn(group);
+		doReturn(groupDao).when(daoRegistry).getResourceDao("Group");
+	}
+
+	private Parameters response() throws Exception {
+		return fhirContext.newJsonParser().parseResource(Parameters.class, servletResponse.getContentAsString());
+	}
+}